@@ -0,0 +1,103 @@
+package com.github.tommyo.cblitemango;
+
+import com.couchbase.lite.CouchbaseLite;
+import com.couchbase.lite.Database;
+import com.couchbase.lite.DatabaseConfiguration;
+import com.couchbase.lite.MutableDocument;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+// a synthetic database of size documents, loaded once per trial:
+//   {"type": "user"|"order"|"event", "name": "name-<i>", "age": i % 100,
+//    "score": 0..1, "tags": ["tag-<0..49>" x 3], "items": [{"name", "qty"} x 0..3]}
+// With indexed, the properties the selectors filter on have value indexes.
+@State(Scope.Benchmark)
+public class Dataset {
+    static final String[] TYPES = {"user", "order", "event"};
+    static final String[] INDEXED = {"type", "age", "name"};
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean indexed;
+
+    Database db;
+    private File dir;
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        CouchbaseLite.init();
+        dir = Files.createTempDirectory("cblite-mango-bench").toFile();
+        db = new Database("bench", new DatabaseConfiguration().setDirectory(dir.getPath()));
+        load(db, size);
+        if (indexed) {
+            for (String field : INDEXED) {
+                CBLiteMango.createIndex(db, new JSONObject().put("index", new JSONObject().put("fields", new JSONArray().put(field))));
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        db.delete();
+        dir.delete();
+    }
+
+    // in transactions of 10k documents; the same documents every run
+    static void load(final Database db, final int size) throws Exception {
+        final Random random = new Random(42);
+        for (int start = 0; start < size; start += 10000) {
+            final int from = start;
+            db.inBatch(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = from; i < Math.min(from + 10000, size); i++) {
+                        try {
+                            db.save(new MutableDocument(String.format("doc-%07d", i), document(i, random)));
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    static Map<String, Object> document(int i, Random random) {
+        Map<String, Object> doc = new HashMap<>();
+        doc.put("type", TYPES[i % TYPES.length]);
+        doc.put("name", "name-" + i);
+        doc.put("age", i % 100);
+        doc.put("score", random.nextDouble());
+        List<Object> tags = new ArrayList<>();
+        for (int t = 0; t < 3; t++) {
+            tags.add("tag-" + random.nextInt(50));
+        }
+        doc.put("tags", tags);
+        List<Object> items = new ArrayList<>();
+        for (int t = random.nextInt(4); t > 0; t--) {
+            Map<String, Object> item = new HashMap<>();
+            item.put("name", "item-" + random.nextInt(20));
+            item.put("qty", 1 + random.nextInt(10));
+            items.add(item);
+        }
+        doc.put("items", items);
+        return doc;
+    }
+}
@@ -0,0 +1,57 @@
+package com.github.tommyo.cblitemango;
+
+import com.couchbase.lite.Query;
+import com.couchbase.lite.Result;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// the stages that run against a Dataset, for every size with and without indexes:
+//  - compile: Query built and prepared by SQLite, which explain() forces
+//  - execute: a compiled Query run and its rows read
+//  - find: the whole of CBLiteMango.find() from request text, without caches
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QueryBenchmark {
+    @Param({"eq", "range", "bigIn", "deepOr", "elemMatch", "regex"})
+    public String shape;
+
+    private String text;
+    private JSONObject req;
+    private Query query;
+
+    @Setup(Level.Trial)
+    public void setUp(Dataset data) throws Exception {
+        text = Shapes.request(shape);
+        req = new JSONObject(text);
+        query = CBLiteMango.build(data.db, req);
+        query.explain();
+    }
+
+    @Benchmark
+    public String compile(Dataset data) throws Exception {
+        return CBLiteMango.build(data.db, req).explain();
+    }
+
+    @Benchmark
+    public int execute() throws Exception {
+        return query.execute().allResults().size();
+    }
+
+    @Benchmark
+    public List<Result> find(Dataset data) throws Exception {
+        return CBLiteMango.find(data.db, text);
+    }
+}
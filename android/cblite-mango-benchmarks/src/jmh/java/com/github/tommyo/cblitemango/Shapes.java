@@ -0,0 +1,52 @@
+package com.github.tommyo.cblitemango;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+// the selector shapes benchmarked, as find requests over a Dataset
+class Shapes {
+    static final String[] NAMES = {"eq", "range", "bigIn", "deepOr", "elemMatch", "regex"};
+
+    static String request(String shape) throws Exception {
+        JSONObject req = new JSONObject();
+        req.put("selector", selector(shape));
+        req.put("fields", new JSONArray().put("_id"));
+        return req.toString();
+    }
+
+    static JSONObject selector(String shape) throws Exception {
+        switch (shape) {
+            case "eq":
+                return new JSONObject().put("type", "user");
+            case "range":
+                return new JSONObject().put("age", new JSONObject().put("$gte", 20).put("$lt", 30));
+            case "bigIn": {
+                // over the default LargeIn threshold, so it runs in chunks
+                JSONArray names = new JSONArray();
+                for (int i = 0; i < 2000; i++) {
+                    names.put("name-" + (i * 37));
+                }
+                return new JSONObject().put("name", new JSONObject().put("$in", names));
+            }
+            case "deepOr": {
+                // 16 branches, each an $and of two fields
+                JSONArray or = new JSONArray();
+                for (int i = 0; i < 16; i++) {
+                    or.put(new JSONObject().put("$and", new JSONArray()
+                            .put(new JSONObject().put("type", Dataset.TYPES[i % Dataset.TYPES.length]))
+                            .put(new JSONObject().put("age", new JSONObject().put("$gt", i * 6)))));
+                }
+                return new JSONObject().put("$or", or);
+            }
+            case "elemMatch":
+                // both conditions on the same item
+                return new JSONObject().put("items", new JSONObject().put("$elemMatch", new JSONObject()
+                        .put("name", "item-7")
+                        .put("qty", new JSONObject().put("$gt", 5))));
+            case "regex":
+                return new JSONObject().put("name", new JSONObject().put("$regex", "^name-12"));
+            default:
+                throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+    }
+}
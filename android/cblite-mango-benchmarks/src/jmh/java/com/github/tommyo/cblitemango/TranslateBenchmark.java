@@ -0,0 +1,46 @@
+package com.github.tommyo.cblitemango;
+
+import com.couchbase.lite.Expression;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// the stages that don't touch the database, so don't depend on its size:
+// request text to a JSONObject and an optimized Selector, and a parsed
+// selector to an Expression
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TranslateBenchmark {
+    @Param({"eq", "range", "bigIn", "deepOr", "elemMatch", "regex"})
+    public String shape;
+
+    private String text;
+    private JSONObject req;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        text = Shapes.request(shape);
+        req = new JSONObject(text);
+    }
+
+    @Benchmark
+    public Object parse() throws Exception {
+        return Selector.parse(new JSONObject(text).getJSONObject("selector")).optimize();
+    }
+
+    @Benchmark
+    public Expression build() throws Exception {
+        return CBLiteMango.where(req);
+    }
+}
@@ -0,0 +1,247 @@
+package com.github.tommyo.cblitemango;
+
+import com.couchbase.lite.DataSource;
+import com.couchbase.lite.Database;
+import com.couchbase.lite.Expression;
+import com.couchbase.lite.Function;
+import com.couchbase.lite.GroupBy;
+import com.couchbase.lite.Having;
+import com.couchbase.lite.Ordering;
+import com.couchbase.lite.Query;
+import com.couchbase.lite.QueryBuilder;
+import com.couchbase.lite.SelectResult;
+import com.couchbase.lite.Where;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// requests computed by SQLite, one row per group rather than per document:
+//   {"selector": ..., "aggregate": {"n": {"$count": "*"}, "avg": {"$avg": "level"}},
+//    "group_by": ["type"], "having": {"n": {"$gt": 2}}, "sort": [{"n": "desc"}]}
+// Each row has the group_by fields and then the named aggregates. having and
+// sort may name either; having takes $eq, $ne, $gt, $gte, $lt, $lte, $in,
+// $and and $or. "fields" doesn't apply.
+class Aggregate {
+    private final List<String> groups = new ArrayList<>();
+    // name -> function, in request order
+    private final Map<String, Expression> aggregates = new LinkedHashMap<>();
+
+    private Aggregate(JSONObject req) throws Exception {
+        if (req.has("fields")) {
+            throw new Exception("fields can't be combined with aggregate; rows hold the group_by fields and aggregates");
+        }
+        JSONArray groupBy = req.optJSONArray("group_by");
+        for (int i = 0; groupBy != null && i < groupBy.length(); i++) {
+            groups.add(groupBy.getString(i));
+        }
+        JSONObject src = req.optJSONObject("aggregate");
+        Iterator<String> it = (src == null) ? null : src.keys();
+        while (it != null && it.hasNext()) {
+            String name = it.next();
+            aggregates.put(name, function(name, src.getJSONObject(name)));
+        }
+        if (groups.isEmpty() && aggregates.isEmpty()) {
+            throw new Exception("aggregate needs at least one aggregate or group_by field");
+        }
+        if (req.has("having") && groups.isEmpty()) {
+            throw new Exception("having needs group_by");
+        }
+    }
+
+    // whether req is an aggregate request
+    public static boolean is(JSONObject req) {
+        return req.has("aggregate") || req.has("group_by");
+    }
+
+    // filter is req's selector, compiled
+    public static Query build(Database db, JSONObject req, Expression filter) throws Exception {
+        Aggregate a = new Aggregate(req);
+        SelectResult[] columns = new SelectResult[a.groups.size() + a.aggregates.size()];
+        int i = 0;
+        for (String prop : a.groups) {
+            columns[i++] = CBLiteMango.field(prop);
+        }
+        for (Map.Entry<String, Expression> e : a.aggregates.entrySet()) {
+            columns[i++] = SelectResult.expression(e.getValue()).as(e.getKey());
+        }
+        Where where = QueryBuilder.select(columns)
+                .from(DataSource.database(db))
+                .where(filter);
+        Ordering[] orderings = a.orderings(req.optJSONArray("sort"));
+        Expression[] limit = CBLiteMango.limit(req.opt("limit"), req.opt("skip"));
+        if (a.groups.isEmpty()) {
+            // a single row
+            return CBLiteMango.page(where, orderings, limit);
+        }
+        Expression[] keys = new Expression[a.groups.size()];
+        for (int k = 0; k < keys.length; k++) {
+            keys[k] = CBLiteMango.property(a.groups.get(k));
+        }
+        GroupBy grouped = where.groupBy(keys);
+        JSONObject having = req.optJSONObject("having");
+        if (having == null) {
+            return page(grouped, orderings, limit);
+        }
+        return page(grouped.having(a.having(having)), orderings, limit);
+    }
+
+    protected static Query page(GroupBy grouped, Ordering[] orderings, Expression[] limit) {
+        if (orderings.length == 0) {
+            return (limit == null) ? grouped : grouped.limit(limit[0], limit[1]);
+        }
+        return (limit == null) ? grouped.orderBy(orderings) : grouped.orderBy(orderings).limit(limit[0], limit[1]);
+    }
+
+    protected static Query page(Having filtered, Ordering[] orderings, Expression[] limit) {
+        if (orderings.length == 0) {
+            return (limit == null) ? filtered : filtered.limit(limit[0], limit[1]);
+        }
+        return (limit == null) ? filtered.orderBy(orderings) : filtered.orderBy(orderings).limit(limit[0], limit[1]);
+    }
+
+    // {"$count": "*"}, {"$sum": "qty"}, ...
+    protected static Expression function(String name, JSONObject src) throws Exception {
+        if (src.length() != 1) {
+            throw new Exception("Aggregate " + name + " needs exactly one operator");
+        }
+        String op = src.keys().next();
+        String prop = src.getString(op);
+        switch (op) {
+            case "$count":
+                // count(*) counts rows, count(prop) the rows where prop exists
+                return Function.count("*".equals(prop) ? Expression.all() : CBLiteMango.property(prop));
+            case "$sum":
+                return Function.sum(CBLiteMango.property(prop));
+            case "$avg":
+                return Function.avg(CBLiteMango.property(prop));
+            case "$min":
+                return Function.min(CBLiteMango.property(prop));
+            case "$max":
+                return Function.max(CBLiteMango.property(prop));
+            default:
+                throw new Exception("Unknown aggregate operator " + op + " for " + name);
+        }
+    }
+
+    // an aggregate by its function, so that it isn't read as a document property
+    protected Expression column(String name) {
+        Expression e = aggregates.get(name);
+        return (e != null) ? e : CBLiteMango.property(name);
+    }
+
+    protected Ordering[] orderings(JSONArray sort) throws Exception {
+        if (sort == null) {
+            return new Ordering[0];
+        }
+        Ordering[] out = new Ordering[sort.length()];
+        for (int i = 0; i < out.length; i++) {
+            Object src = sort.get(i);
+            String prop;
+            String direction = "asc";
+            if (src instanceof JSONObject) {
+                prop = ((JSONObject) src).names().getString(0);
+                direction = ((JSONObject) src).getString(prop);
+            } else {
+                prop = (String) src;
+            }
+            if (!aggregates.containsKey(prop)) {
+                out[i] = CBLiteMango.ordering(prop, direction);
+                continue;
+            }
+            Ordering.SortOrder order = Ordering.expression(aggregates.get(prop));
+            switch (direction) {
+                case "asc":
+                    out[i] = order.ascending();
+                    break;
+                case "desc":
+                    out[i] = order.descending();
+                    break;
+                default:
+                    throw new Exception("Invalid sort direction " + direction + " for " + prop);
+            }
+        }
+        return out;
+    }
+
+    // {"n": {"$gt": 2}, "type": "user", "$or": [...]}
+    protected Expression having(JSONObject src) throws Exception {
+        Expression out = null;
+        Iterator<String> it = src.keys();
+        while (it.hasNext()) {
+            String key = it.next();
+            Expression e;
+            switch (key) {
+                case "$and":
+                case "$or":
+                    JSONArray list = src.getJSONArray(key);
+                    if (list.length() == 0) {
+                        throw new Exception("Empty selector list");
+                    }
+                    e = having(list.getJSONObject(0));
+                    for (int i = 1; i < list.length(); i++) {
+                        e = "$and".equals(key) ? e.and(having(list.getJSONObject(i))) : e.or(having(list.getJSONObject(i)));
+                    }
+                    break;
+                default:
+                    e = condition(key, src.get(key));
+                    break;
+            }
+            out = (out == null) ? e : out.and(e);
+        }
+        if (out == null) {
+            throw new Exception("Empty having");
+        }
+        return out;
+    }
+
+    protected Expression condition(String name, Object src) throws Exception {
+        Expression column = column(name);
+        if (!(src instanceof JSONObject)) {
+            return column.equalTo(CBLiteMango.literal(src));
+        }
+        JSONObject ops = (JSONObject) src;
+        Expression out = null;
+        Iterator<String> it = ops.keys();
+        while (it.hasNext()) {
+            String op = it.next();
+            Object val = ops.get(op);
+            Expression e;
+            switch (op) {
+                case "$eq":
+                    e = column.equalTo(CBLiteMango.literal(val));
+                    break;
+                case "$ne":
+                    e = column.notEqualTo(CBLiteMango.literal(val));
+                    break;
+                case "$gt":
+                    e = column.greaterThan(CBLiteMango.literal(val));
+                    break;
+                case "$gte":
+                    e = column.greaterThanOrEqualTo(CBLiteMango.literal(val));
+                    break;
+                case "$lt":
+                    e = column.lessThan(CBLiteMango.literal(val));
+                    break;
+                case "$lte":
+                    e = column.lessThanOrEqualTo(CBLiteMango.literal(val));
+                    break;
+                case "$in":
+                    e = column.in(CBLiteMango.literals(ops.getJSONArray(op)));
+                    break;
+                default:
+                    throw new Exception("Unsupported having operator " + op + " on " + name);
+            }
+            out = (out == null) ? e : out.and(e);
+        }
+        if (out == null) {
+            throw new Exception("Empty having condition on " + name);
+        }
+        return out;
+    }
+}
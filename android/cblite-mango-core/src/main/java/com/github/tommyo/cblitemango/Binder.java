@@ -0,0 +1,318 @@
+package com.github.tommyo.cblitemango;
+
+import com.couchbase.lite.Parameters;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// splits a request into its shape (the selector with every bindable literal
+// replaced by "?") and the literal values, in a stable, key-sorted order.
+// Two requests that differ only in literals share a shape, and so a query.
+class Binder {
+    private final StringBuilder shape = new StringBuilder();
+    private final List<Object> values = new ArrayList<>();
+    private final boolean rewrite;
+    private JSONObject rewritten;
+
+    private Binder(boolean rewrite) {
+        this.rewrite = rewrite;
+    }
+
+    // marker left in the rewritten selector; literal() turns it into Expression.parameter
+    static final class Param {
+        final String name;
+
+        Param(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return "$" + name;
+        }
+    }
+
+    public static String name(int i) {
+        return "p" + i;
+    }
+
+    // shape and values only
+    public static Binder of(JSONObject req) throws JSONException {
+        Binder b = new Binder(false);
+        b.request(req);
+        return b;
+    }
+
+    // shape, values and a copy of the request with literals swapped for Param markers
+    public static Binder rewrite(JSONObject req) throws JSONException {
+        Binder b = new Binder(true);
+        b.rewritten = b.request(req);
+        return b;
+    }
+
+    public String getShape() {
+        return shape.toString();
+    }
+
+    public List<Object> getValues() {
+        return values;
+    }
+
+    public JSONObject getRequest() {
+        return rewritten;
+    }
+
+    public Parameters parameters() {
+        Parameters p = new Parameters();
+        for (int i = 0; i < values.size(); i++) {
+            p.setValue(name(i), values.get(i));
+        }
+        return p;
+    }
+
+    // {"aggregate":..., "fields":..., "group_by":..., "having":..., "limit":?,
+    // "selector":..., "skip":?, "sort":...}; aggregates stay literal
+    private JSONObject request(JSONObject req) throws JSONException {
+        JSONObject out = rewrite ? new JSONObject() : null;
+        shape.append('{');
+        Object aggregate = req.opt("aggregate");
+        if (aggregate != null) {
+            shape.append("\"aggregate\":");
+            Fingerprint.write(shape, aggregate);
+            shape.append(',');
+        }
+        shape.append("\"fields\":");
+        Object fields = req.opt("fields");
+        Fingerprint.write(shape, fields);
+        Object groupBy = req.opt("group_by");
+        if (groupBy != null) {
+            shape.append(",\"group_by\":");
+            Fingerprint.write(shape, groupBy);
+        }
+        Object having = req.opt("having");
+        if (having != null) {
+            shape.append(",\"having\":");
+            Fingerprint.write(shape, having);
+        }
+        Object limit = null;
+        if (req.has("limit")) {
+            shape.append(",\"limit\":");
+            limit = literal(req.get("limit"));
+        }
+        shape.append(",\"selector\":");
+        JSONObject selector = selector(req.getJSONObject("selector"));
+        Object skip = null;
+        if (req.has("skip")) {
+            shape.append(",\"skip\":");
+            skip = literal(req.get("skip"));
+        }
+        Object sort = req.opt("sort");
+        if (sort != null) {
+            shape.append(",\"sort\":");
+            Fingerprint.write(shape, sort);
+        }
+        shape.append('}');
+        if (out != null) {
+            out.put("aggregate", aggregate);
+            out.put("fields", fields);
+            out.put("group_by", groupBy);
+            out.put("having", having);
+            out.put("limit", limit);
+            out.put("selector", selector);
+            out.put("skip", skip);
+            out.put("sort", sort);
+        }
+        return out;
+    }
+
+    // {field: ..., $and: [...], ...}
+    private JSONObject selector(JSONObject src) throws JSONException {
+        JSONObject out = rewrite ? new JSONObject() : null;
+        String[] keys = Fingerprint.keys(src);
+        shape.append('{');
+        for (int i = 0; i < keys.length; i++) {
+            String key = keys[i];
+            Object val = src.get(key);
+            Object copy;
+            if (i > 0) {
+                shape.append(',');
+            }
+            shape.append(JSONObject.quote(key)).append(':');
+            switch (key) {
+                case "$and":
+                case "$or":
+                case "$nor":
+                    copy = selectors((JSONArray) val);
+                    break;
+                case "$not":
+                    copy = selector((JSONObject) val);
+                    break;
+                case "$text":
+                    // match() takes no parameters
+                    copy = val;
+                    Fingerprint.write(shape, val);
+                    break;
+                default:
+                    copy = field(val);
+                    break;
+            }
+            if (out != null) {
+                out.put(key, copy);
+            }
+        }
+        shape.append('}');
+        return out;
+    }
+
+    private JSONArray selectors(JSONArray src) throws JSONException {
+        JSONArray out = rewrite ? new JSONArray() : null;
+        shape.append('[');
+        for (int i = 0; i < src.length(); i++) {
+            if (i > 0) {
+                shape.append(',');
+            }
+            JSONObject copy = selector(src.getJSONObject(i));
+            if (out != null) {
+                out.put(copy);
+            }
+        }
+        shape.append(']');
+        return out;
+    }
+
+    // the value of a field: an implicit $eq literal or an operator object
+    private Object field(Object val) throws JSONException {
+        if (!(val instanceof JSONObject)) {
+            return literal(val);
+        }
+        JSONObject src = (JSONObject) val;
+        JSONObject out = rewrite ? new JSONObject() : null;
+        String[] keys = Fingerprint.keys(src);
+        shape.append('{');
+        for (int i = 0; i < keys.length; i++) {
+            String key = keys[i];
+            if (i > 0) {
+                shape.append(',');
+            }
+            shape.append(JSONObject.quote(key)).append(':');
+            Object copy = operator(key, src.get(key));
+            if (out != null) {
+                out.put(key, copy);
+            }
+        }
+        shape.append('}');
+        return out;
+    }
+
+    private Object operator(String op, Object val) throws JSONException {
+        switch (op) {
+            case "$eq":
+            case "$lt":
+            case "$lte":
+            case "$ne":
+            case "$gte":
+            case "$gt":
+                return literal(val);
+            case "$elemMatch":
+                // [a, b] or a sub-selector on the elements
+                return (val instanceof JSONArray) ? literals((JSONArray) val) : element(val);
+            case "$allMatch":
+                return element(val);
+            case "$in":
+            case "$nin":
+            case "$all":
+                return literals((JSONArray) val);
+            default:
+                // $exists, $regex, $size, ... change the query itself
+                Fingerprint.write(shape, val);
+                return val;
+        }
+    }
+
+    // an $elemMatch/$allMatch sub-selector: operators on the element, its
+    // fields, and $and/$or/$nor/$not of those
+    private Object element(Object val) throws JSONException {
+        if (!(val instanceof JSONObject)) {
+            return literal(val);
+        }
+        JSONObject src = (JSONObject) val;
+        JSONObject out = rewrite ? new JSONObject() : null;
+        String[] keys = Fingerprint.keys(src);
+        shape.append('{');
+        for (int i = 0; i < keys.length; i++) {
+            String key = keys[i];
+            Object v = src.get(key);
+            Object copy;
+            if (i > 0) {
+                shape.append(',');
+            }
+            shape.append(JSONObject.quote(key)).append(':');
+            switch (key) {
+                case "$and":
+                case "$or":
+                case "$nor":
+                    copy = elements((JSONArray) v);
+                    break;
+                case "$not":
+                    copy = element(v);
+                    break;
+                default:
+                    copy = key.startsWith("$") ? operator(key, v) : field(v);
+                    break;
+            }
+            if (out != null) {
+                out.put(key, copy);
+            }
+        }
+        shape.append('}');
+        return out;
+    }
+
+    private JSONArray elements(JSONArray src) throws JSONException {
+        JSONArray out = rewrite ? new JSONArray() : null;
+        shape.append('[');
+        for (int i = 0; i < src.length(); i++) {
+            if (i > 0) {
+                shape.append(',');
+            }
+            Object copy = element(src.get(i));
+            if (out != null) {
+                out.put(copy);
+            }
+        }
+        shape.append(']');
+        return out;
+    }
+
+    private JSONArray literals(JSONArray src) throws JSONException {
+        JSONArray out = rewrite ? new JSONArray() : null;
+        shape.append('[');
+        for (int i = 0; i < src.length(); i++) {
+            if (i > 0) {
+                shape.append(',');
+            }
+            Object copy = literal(src.get(i));
+            if (out != null) {
+                out.put(copy);
+            }
+        }
+        shape.append(']');
+        return out;
+    }
+
+    private Object literal(Object val) throws JSONException {
+        // null, objects and arrays select different operators, they stay in the shape
+        if (val == JSONObject.NULL || val instanceof JSONObject || val instanceof JSONArray) {
+            Fingerprint.write(shape, val);
+            return val;
+        }
+        shape.append('?');
+        Param p = new Param(name(values.size()));
+        values.add(val);
+        return p;
+    }
+}
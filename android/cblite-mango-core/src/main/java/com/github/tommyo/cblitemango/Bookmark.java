@@ -0,0 +1,229 @@
+package com.github.tommyo.cblitemango;
+
+import com.couchbase.lite.DataSource;
+import com.couchbase.lite.Database;
+import com.couchbase.lite.Expression;
+import com.couchbase.lite.Ordering;
+import com.couchbase.lite.Parameters;
+import com.couchbase.lite.Query;
+import com.couchbase.lite.QueryBuilder;
+import com.couchbase.lite.Result;
+import com.couchbase.lite.SelectResult;
+import com.couchbase.lite.Where;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+// keyset pagination: a bookmark holds the sort key values and _id of the last
+// row of a page, and the next page starts strictly after them. Every page
+// costs the same, where skip costs O(skip). Rows whose sort fields are missing
+// or null never satisfy the keyset predicate, so sort on fields every row has.
+// The key values are read from columns __bookmark_0, __bookmark_1, ... added
+// after the requested fields; a Result can't hide them, so callers that walk
+// every column of a page should stop at the requested ones.
+class Bookmark {
+    static final String COLUMN = "__bookmark_";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    static class Key {
+        final String prop;
+        final String direction;
+        final Expression expression;
+
+        Key(String prop, String direction) {
+            this.prop = prop;
+            this.direction = direction;
+            // as ordering() sorts it, so _id and _rev are metadata
+            this.expression = CBLiteMango.property(prop);
+        }
+    }
+
+    public static FindResult find(Database db, JSONObject req) throws Exception {
+        if (Aggregate.is(req)) {
+            throw new Exception("Aggregate requests can't be paged by bookmark");
+        }
+        List<Key> keys = keys(req.optJSONArray("sort"));
+        String bookmark = req.has("bookmark") ? req.getString("bookmark") : null;
+        Object[] last = (bookmark == null) ? null : decode(bookmark, keys.size());
+
+        Query q = query(db, req, keys, last != null);
+        List<Result> rows;
+        if (last == null) {
+            rows = q.execute().allResults();
+        } else {
+            Parameters p = new Parameters();
+            for (int i = 0; i < last.length; i++) {
+                p.setValue(COLUMN + i, last[i]);
+            }
+            // the query may be shared through the cache
+            synchronized (q) {
+                q.setParameters(p);
+                rows = q.execute().allResults();
+            }
+        }
+        if (rows.isEmpty()) {
+            return new FindResult(rows, bookmark);
+        }
+        Result end = rows.get(rows.size() - 1);
+        JSONArray next = new JSONArray();
+        for (int i = 0; i < keys.size(); i++) {
+            Object val = end.getValue(COLUMN + i);
+            next.put(val == null ? JSONObject.NULL : val);
+        }
+        return new FindResult(rows, encode(next.toString()));
+    }
+
+    // the requested sort, with _id appended as the tie breaker
+    protected static List<Key> keys(JSONArray sort) throws Exception {
+        List<Key> keys = new ArrayList<>();
+        if (sort != null) {
+            for (int i = 0; i < sort.length(); i++) {
+                Object src = sort.get(i);
+                String prop = Indexes.field(src);
+                String direction = (src instanceof JSONObject) ? ((JSONObject) src).getString(prop) : "asc";
+                keys.add(new Key(prop, direction));
+            }
+        }
+        if (keys.isEmpty() || !"_id".equals(keys.get(keys.size() - 1).prop)) {
+            keys.add(new Key("_id", "asc"));
+        }
+        return keys;
+    }
+
+    // the keyset predicate binds the bookmark as parameters, so every page
+    // after the first shares one compiled query
+    protected static Query query(Database db, JSONObject req, List<Key> keys, boolean after) throws Exception {
+        QueryCache c = CBLiteMango.getQueryCache();
+        String key = (after ? "#after:" : "#first:") + CBLiteMango.fingerprint(req);
+        Query q = (c == null) ? null : c.get(db, key);
+        if (q != null) {
+            return q;
+        }
+
+        SelectResult[] fields = CBLiteMango.fields(req);
+        SelectResult[] columns = new SelectResult[fields.length + keys.size()];
+        System.arraycopy(fields, 0, columns, 0, fields.length);
+        Ordering[] orderings = new Ordering[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            Key k = keys.get(i);
+            columns[fields.length + i] = SelectResult.expression(k.expression).as(COLUMN + i);
+            orderings[i] = CBLiteMango.ordering(k.prop, k.direction);
+        }
+
+        Expression where = CBLiteMango.where(req);
+        if (after) {
+            where = where.and(keyset(keys));
+        }
+        Where filtered = QueryBuilder.select(columns)
+                .from(DataSource.database(db))
+                .where(where);
+        // the keyset replaces skip
+        q = CBLiteMango.page(filtered, orderings, CBLiteMango.limit(req.opt("limit"), after ? null : req.opt("skip")));
+        if (c != null) {
+            c.put(db, key, q);
+        }
+        return q;
+    }
+
+    // (k0 > b0) OR (k0 = b0 AND k1 > b1) OR ... with < for descending keys
+    protected static Expression keyset(List<Key> keys) {
+        Expression out = null;
+        for (int i = 0; i < keys.size(); i++) {
+            Expression term = null;
+            for (int j = 0; j < i; j++) {
+                Expression eq = keys.get(j).expression.equalTo(Expression.parameter(COLUMN + j));
+                term = (term == null) ? eq : term.and(eq);
+            }
+            Key k = keys.get(i);
+            Expression bound = Expression.parameter(COLUMN + i);
+            Expression after = "desc".equals(k.direction)
+                    ? k.expression.lessThan(bound)
+                    : k.expression.greaterThan(bound);
+            term = (term == null) ? after : term.and(after);
+            out = (out == null) ? term : out.or(term);
+        }
+        return out;
+    }
+
+    protected static Object[] decode(String bookmark, int size) throws Exception {
+        JSONArray values;
+        try {
+            values = new JSONArray(new String(base64(bookmark), UTF8));
+        } catch (Exception e) {
+            throw new Exception("Invalid bookmark");
+        }
+        if (values.length() != size) {
+            throw new Exception("Bookmark does not match the request's sort");
+        }
+        Object[] out = new Object[size];
+        for (int i = 0; i < size; i++) {
+            Object val = values.get(i);
+            out[i] = (val == JSONObject.NULL) ? null : val;
+        }
+        return out;
+    }
+
+    // unpadded base64url
+    protected static String encode(String src) {
+        byte[] in = src.getBytes(UTF8);
+        StringBuilder out = new StringBuilder((in.length * 4 + 2) / 3);
+        for (int i = 0; i < in.length; i += 3) {
+            int n = (in[i] & 0xff) << 16;
+            if (i + 1 < in.length) {
+                n |= (in[i + 1] & 0xff) << 8;
+            }
+            if (i + 2 < in.length) {
+                n |= in[i + 2] & 0xff;
+            }
+            out.append(ALPHABET[(n >> 18) & 63]).append(ALPHABET[(n >> 12) & 63]);
+            if (i + 1 < in.length) {
+                out.append(ALPHABET[(n >> 6) & 63]);
+            }
+            if (i + 2 < in.length) {
+                out.append(ALPHABET[n & 63]);
+            }
+        }
+        return out.toString();
+    }
+
+    protected static byte[] base64(String src) throws Exception {
+        int len = src.length();
+        if (len % 4 == 1) {
+            throw new Exception("Invalid bookmark");
+        }
+        byte[] out = new byte[len * 3 / 4];
+        int n = 0;
+        int bits = 0;
+        int o = 0;
+        for (int i = 0; i < len; i++) {
+            char c = src.charAt(i);
+            int v;
+            if (c >= 'A' && c <= 'Z') {
+                v = c - 'A';
+            } else if (c >= 'a' && c <= 'z') {
+                v = c - 'a' + 26;
+            } else if (c >= '0' && c <= '9') {
+                v = c - '0' + 52;
+            } else if (c == '-') {
+                v = 62;
+            } else if (c == '_') {
+                v = 63;
+            } else {
+                throw new Exception("Invalid bookmark");
+            }
+            n = (n << 6) | v;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                out[o++] = (byte) (n >> bits);
+            }
+        }
+        return out;
+    }
+}
@@ -0,0 +1,959 @@
+package com.github.tommyo.cblitemango;
+
+import com.couchbase.lite.ArrayExpression;
+import com.couchbase.lite.ArrayFunction;
+import com.couchbase.lite.DataSource;
+import com.couchbase.lite.Database;
+import com.couchbase.lite.Expression;
+import com.couchbase.lite.FullTextExpression;
+import com.couchbase.lite.FullTextFunction;
+import com.couchbase.lite.Function;
+import com.couchbase.lite.Meta;
+import com.couchbase.lite.OrderBy;
+import com.couchbase.lite.Ordering;
+import com.couchbase.lite.Query;
+import com.couchbase.lite.QueryBuilder;
+import com.couchbase.lite.Result;
+import com.couchbase.lite.ResultSet;
+import com.couchbase.lite.SelectResult;
+import com.couchbase.lite.VariableExpression;
+import com.couchbase.lite.Where;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+class CBLiteMango {
+    // disabled by default: cached queries are shared between callers
+    private static volatile QueryCache cache;
+
+    public static void setQueryCache(QueryCache c) {
+        cache = c;
+    }
+
+    public static QueryCache getQueryCache() {
+        return cache;
+    }
+
+    // drops every cached query compiled against db
+    public static void invalidate(Database db) {
+        QueryCache c = cache;
+        if (c != null) {
+            c.invalidate(db);
+        }
+    }
+
+    // disabled by default: cached rows are shared between callers, see docs()
+    private static volatile ResultCache results;
+
+    public static void setResultCache(ResultCache c) {
+        ResultCache old = results;
+        results = c;
+        if (old != null && old != c) {
+            old.clear();
+        }
+    }
+
+    public static ResultCache getResultCache() {
+        return results;
+    }
+
+    public static void close(Database db) throws Exception {
+        invalidate(db);
+        ResultCache rc = results;
+        if (rc != null) {
+            rc.invalidate(db);
+        }
+        db.close();
+    }
+
+    // $in/$nin lists longer than threshold run in chunks of chunkSize values
+    // from find() and docs(), see LargeIn
+    public static void setLargeInLimits(int threshold, int chunkSize) {
+        LargeIn.setLimits(threshold, chunkSize);
+    }
+
+    // disabled by default: coalesced callers share one read-only list of rows
+    private static volatile SingleFlight flights;
+
+    public static void setSingleFlight(SingleFlight f) {
+        flights = f;
+    }
+
+    public static SingleFlight getSingleFlight() {
+        return flights;
+    }
+
+    private static final List<MetricsListener> listeners = new CopyOnWriteArrayList<>();
+
+    // nothing is timed while no listener is registered
+    public static void addMetricsListener(MetricsListener l) {
+        listeners.add(l);
+    }
+
+    public static void removeMetricsListener(MetricsListener l) {
+        listeners.remove(l);
+    }
+
+    protected static void report(QueryMetrics m) {
+        for (MetricsListener l : listeners) {
+            l.onQuery(m);
+        }
+    }
+
+    public static Query query(Database db, String req) throws Exception {
+        if (listeners.isEmpty()) {
+            return compile(db, req, null);
+        }
+        QueryMetrics m = new QueryMetrics(db, req);
+        m.query = compile(db, req, m);
+        report(m);
+        return m.query;
+    }
+
+    public static Query query(Database db, JSONObject req) throws Exception {
+        if (listeners.isEmpty()) {
+            return compile(db, req, null);
+        }
+        QueryMetrics m = new QueryMetrics(db, req);
+        m.query = compile(db, req, m);
+        report(m);
+        return m.query;
+    }
+
+    // compiles and executes req, returning every row
+    public static List<Result> find(final Database db, final String req) throws Exception {
+        SingleFlight f = flights;
+        if (f == null) {
+            return execute(db, req);
+        }
+        return f.run(db, f.key(req), new Callable<List<Result>>() {
+            @Override
+            public List<Result> call() throws Exception {
+                return execute(db, req);
+            }
+        });
+    }
+
+    public static List<Result> find(final Database db, final JSONObject req) throws Exception {
+        SingleFlight f = flights;
+        if (f == null) {
+            return execute(db, req);
+        }
+        return f.run(db, fingerprint(req), new Callable<List<Result>>() {
+            @Override
+            public List<Result> call() throws Exception {
+                return execute(db, req);
+            }
+        });
+    }
+
+    // like find(), with each row decoded into a new T, see RowMapper
+    public static <T> List<T> find(Database db, String req, Class<T> type) throws Exception {
+        return find(db, new JSONObject(req), type);
+    }
+
+    public static <T> List<T> find(Database db, JSONObject req, Class<T> type) throws Exception {
+        return RowMapper.of(type).map(find(db, req), RowMapper.columns(req));
+    }
+
+    protected static List<Result> execute(Database db, String req) throws Exception {
+        if (req.length() > 2L * LargeIn.getThreshold()) {
+            // long enough to hold a list over the threshold, see LargeIn
+            return execute(db, new JSONObject(req));
+        }
+        if (listeners.isEmpty()) {
+            return run(compile(db, req, null), null);
+        }
+        QueryMetrics m = new QueryMetrics(db, req);
+        m.query = compile(db, req, m);
+        List<Result> rows = run(m.query, m);
+        report(m);
+        return rows;
+    }
+
+    protected static List<Result> execute(Database db, JSONObject req) throws Exception {
+        LargeIn large = LargeIn.of(req);
+        if (large != null && !large.extra.isEmpty()) {
+            // the caller would see the extra columns, see LargeIn
+            large = null;
+        }
+        if (listeners.isEmpty()) {
+            return (large != null) ? large.find(db, req, null) : run(compile(db, req, null), null);
+        }
+        QueryMetrics m = new QueryMetrics(db, req);
+        List<Result> rows;
+        if (large != null) {
+            rows = large.find(db, req, m);
+        } else {
+            m.query = compile(db, req, m);
+            rows = run(m.query, m);
+        }
+        report(m);
+        return rows;
+    }
+
+    // the number of documents selector matches, counted by SQLite
+    public static long count(Database db, String selector) throws Exception {
+        return count(db, new JSONObject(selector));
+    }
+
+    public static long count(Database db, JSONObject selector) throws Exception {
+        JSONObject req = new JSONObject()
+                .put("selector", selector)
+                .put("aggregate", new JSONObject().put("count", new JSONObject().put("$count", "*")));
+        return find(db, req).get(0).getLong("count");
+    }
+
+    // like find(), with each row as a map of its fields. Selectors that only
+    // name documents by _id are answered with direct lookups, see Lookup.
+    // With a ResultCache set, unchanged requests are answered from it.
+    public static List<Map<String, Object>> docs(Database db, String req) throws Exception {
+        return docs(db, new JSONObject(req));
+    }
+
+    public static List<Map<String, Object>> docs(Database db, JSONObject req) throws Exception {
+        QueryMetrics m = listeners.isEmpty() ? null : new QueryMetrics(db, req);
+        ResultCache rc = results;
+        String key = null;
+        long generation = 0;
+        if (rc != null) {
+            key = fingerprint(req);
+            List<Map<String, Object>> rows = rc.get(db, key);
+            if (rows != null) {
+                if (m != null) {
+                    m.resultCached = true;
+                    m.rows = rows.size();
+                    report(m);
+                }
+                return rows;
+            }
+            generation = rc.generation(db);
+        }
+        // what the cache needs to know which changes affect the rows
+        Set<String> ids = (rc == null) ? null : new HashSet<String>();
+        if (req.optInt("skip", 0) > 0) {
+            // a change before the page shifts it, without the changed
+            // document being one of the rows or matching now
+            ids = null;
+        }
+        Predicate predicate = null;
+        List<Map<String, Object>> rows;
+        LargeIn large;
+        List<String> named = Lookup.ids(req);
+        if (named != null) {
+            long start = (m == null) ? 0 : System.nanoTime();
+            rows = Lookup.find(db, req, named);
+            if (m != null) {
+                m.executeNanos = System.nanoTime() - start;
+                m.rows = rows.size();
+            }
+            if (ids != null) {
+                // no other document can match
+                ids.addAll(named);
+            }
+        } else if ((large = LargeIn.of(req)) != null) {
+            List<Result> results = large.find(db, req, m);
+            rows = new ArrayList<>(results.size());
+            for (Result row : results) {
+                Map<String, Object> map = row.toMap();
+                if (!large.extra.isEmpty()) {
+                    map = new HashMap<>(map);
+                    map.keySet().removeAll(large.extra);
+                }
+                rows.add(map);
+            }
+            ids = null;
+        } else if (ids == null || Aggregate.is(req)) {
+            // aggregate rows aren't documents: any change may affect them
+            ids = null;
+            Query q = compile(db, req, m);
+            if (m != null) {
+                m.query = q;
+            }
+            List<Result> results = run(q, m);
+            rows = new ArrayList<>(results.size());
+            for (Result row : results) {
+                rows.add(row.toMap());
+            }
+        } else {
+            rows = keyed(db, req, m, ids);
+            try {
+                predicate = Predicate.compile(req.getJSONObject("selector"));
+            } catch (Exception e) {
+                ids = null;
+            }
+        }
+        if (m != null) {
+            report(m);
+        }
+        return (rc == null) ? rows : rc.put(db, key, generation, rows, ids, predicate);
+    }
+
+    // the rows of req, with the _id of each collected into ids. Built with a
+    // hidden _id column like LiveQuery's, so not from the query cache.
+    protected static List<Map<String, Object>> keyed(Database db, JSONObject req, QueryMetrics m, Set<String> ids) throws Exception {
+        long start = (m == null) ? 0 : System.nanoTime();
+        SelectResult[] fields = fields(req);
+        SelectResult[] columns = new SelectResult[fields.length + 1];
+        System.arraycopy(fields, 0, columns, 0, fields.length);
+        columns[fields.length] = SelectResult.expression(Meta.id).as(LiveQuery.KEY);
+        Where where = QueryBuilder.select(columns)
+                .from(DataSource.database(db))
+                .where(where(req));
+        Query q = page(where, orderings(req.optJSONArray("sort"), textIndex(req)), limit(req.opt("limit"), req.opt("skip")));
+        if (m != null) {
+            m.buildNanos = System.nanoTime() - start;
+            m.query = q;
+        }
+        List<Result> results = run(q, m);
+        List<Map<String, Object>> rows = new ArrayList<>(results.size());
+        for (Result row : results) {
+            Map<String, Object> map = new HashMap<>(row.toMap());
+            ids.add((String) map.remove(LiveQuery.KEY));
+            rows.add(map);
+        }
+        return rows;
+    }
+
+    // find() and stream() off the caller's thread, by default on two daemon
+    // threads with a queue of 64; further submissions are rejected: findAsync()
+    // throws the executor's RejectedExecutionException, and a stream ends with
+    // it in onError()
+    private static volatile ExecutorService executor;
+
+    public static void setExecutor(ExecutorService e) {
+        executor = e;
+    }
+
+    protected static ExecutorService executor() {
+        ExecutorService e = executor;
+        if (e == null) {
+            synchronized (CBLiteMango.class) {
+                if (executor == null) {
+                    ThreadPoolExecutor pool = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(64), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "cblite-mango-query");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+                    pool.allowCoreThreadTimeOut(true);
+                    executor = pool;
+                }
+                e = executor;
+            }
+        }
+        return e;
+    }
+
+    public static Future<List<Result>> findAsync(Database db, String req) {
+        return findAsync(db, (Object) req, null);
+    }
+
+    public static Future<List<Result>> findAsync(Database db, JSONObject req) {
+        return findAsync(db, (Object) req, null);
+    }
+
+    // callback runs on the worker thread, after the rows were read
+    public static Future<List<Result>> findAsync(Database db, String req, Callback<List<Result>> callback) {
+        return findAsync(db, (Object) req, callback);
+    }
+
+    public static Future<List<Result>> findAsync(Database db, JSONObject req, Callback<List<Result>> callback) {
+        return findAsync(db, (Object) req, callback);
+    }
+
+    protected static Future<List<Result>> findAsync(final Database db, final Object req, final Callback<List<Result>> callback) {
+        return executor().submit(new Callable<List<Result>>() {
+            @Override
+            public List<Result> call() throws Exception {
+                List<Result> rows;
+                try {
+                    rows = (req instanceof String) ? find(db, (String) req) : find(db, (JSONObject) req);
+                } catch (Exception e) {
+                    if (callback != null) {
+                        callback.onError(e);
+                    }
+                    throw e;
+                }
+                if (callback != null) {
+                    callback.onResult(rows);
+                }
+                return rows;
+            }
+        });
+    }
+
+    // rows pushed to subscriber as it requests them, see RowStream. Nothing
+    // runs until the first request().
+    public static RowStream stream(Database db, String req, RowStream.Subscriber subscriber) throws Exception {
+        return new RowStream(compile(db, req, null), executor(), subscriber);
+    }
+
+    public static RowStream stream(Database db, JSONObject req, RowStream.Subscriber subscriber) throws Exception {
+        return new RowStream(compile(db, req, null), executor(), subscriber);
+    }
+
+    // one page of a sorted request; pass the returned bookmark back in the
+    // request's "bookmark" key for the next page, see Bookmark
+    public static FindResult findPage(Database db, String req) throws Exception {
+        return findPage(db, new JSONObject(req));
+    }
+
+    public static FindResult findPage(Database db, JSONObject req) throws Exception {
+        return Bookmark.find(db, req);
+    }
+
+    protected static Query compile(Database db, String req, QueryMetrics m) throws Exception {
+        QueryCache c = cache;
+        if (c != null) {
+            Query q = c.getRaw(db, req);
+            if (q != null) {
+                if (m != null) {
+                    m.cached = true;
+                }
+                return q;
+            }
+        }
+        long start = (m == null) ? 0 : System.nanoTime();
+        JSONObject json = new JSONObject(req);
+        if (m != null) {
+            m.parseNanos = System.nanoTime() - start;
+        }
+        if (c == null) {
+            return build(db, json, m);
+        }
+        String key = fingerprint(json);
+        Query q = cached(c, db, key, json, m);
+        c.alias(db, req, key);
+        return q;
+    }
+
+    protected static Query compile(Database db, JSONObject req, QueryMetrics m) throws Exception {
+        QueryCache c = cache;
+        if (c == null) {
+            return build(db, req, m);
+        }
+        return cached(c, db, fingerprint(req), req, m);
+    }
+
+    protected static Query cached(QueryCache c, Database db, String key, JSONObject req, QueryMetrics m) throws Exception {
+        Query q = c.get(db, key);
+        if (q == null) {
+            q = build(db, req, m);
+            c.put(db, key, q);
+        } else if (m != null) {
+            m.cached = true;
+        }
+        return q;
+    }
+
+    protected static Query build(Database db, JSONObject req, QueryMetrics m) throws Exception {
+        if (m == null) {
+            return build(db, req);
+        }
+        long start = System.nanoTime();
+        Query q = build(db, req);
+        m.buildNanos = System.nanoTime() - start;
+        return q;
+    }
+
+    protected static Query build(Database db, JSONObject req) throws Exception {
+        return build(db, req, Selector.parse(req.getJSONObject("selector")));
+    }
+
+    // req's selector given already parsed, see StreamParser
+    protected static Query build(Database db, JSONObject req, Selector selector) throws Exception {
+        Expression filter = selector.optimize().compile();
+        if (Aggregate.is(req)) {
+            return Aggregate.build(db, req, filter);
+        }
+        String text = Selector.Text.index(selector);
+        Where where = QueryBuilder.select(fields(req, text))
+                .from(DataSource.database(db))
+                .where(filter);
+        return page(where, orderings(req.optJSONArray("sort"), text), limit(req.opt("limit"), req.opt("skip")));
+    }
+
+    // sort, then limit/offset; either may be absent
+    protected static Query page(Where where, Ordering[] orderings, Expression[] limit) {
+        if (orderings.length == 0) {
+            return (limit == null) ? where : where.limit(limit[0], limit[1]);
+        }
+        OrderBy ordered = where.orderBy(orderings);
+        return (limit == null) ? ordered : ordered.limit(limit[0], limit[1]);
+    }
+
+    // [{"level": "desc"}, "name", ...]
+    protected static Ordering[] orderings(JSONArray sort, String text) throws Exception {
+        if (sort == null) {
+            return new Ordering[0];
+        }
+        Ordering[] out = new Ordering[sort.length()];
+        for (int i = 0; i < out.length; i++) {
+            Object src = sort.get(i);
+            if (src instanceof JSONObject) {
+                String prop = ((JSONObject) src).names().getString(0);
+                out[i] = ordering(prop, ((JSONObject) src).getString(prop), text);
+            } else {
+                out[i] = ordering((String) src, "asc", text);
+            }
+        }
+        return out;
+    }
+
+    protected static Ordering ordering(String prop, String direction) throws Exception {
+        return ordering(prop, direction, null);
+    }
+
+    // text is the index _rank reads, see textIndex()
+    protected static Ordering ordering(String prop, String direction, String text) throws Exception {
+        Ordering.SortOrder order;
+        switch (prop) {
+            case "_rank":
+                order = Ordering.expression(FullTextFunction.rank(rank(text)));
+                break;
+            case "_id":
+                order = Ordering.expression(Meta.id);
+                break;
+            case "_rev":
+                order = Ordering.expression(Meta.sequence);
+                break;
+            default:
+                order = Ordering.property(prop);
+                break;
+        }
+        switch (direction) {
+            case "asc":
+                return order.ascending();
+            case "desc":
+                return order.descending();
+            default:
+                throw new Exception("Invalid sort direction " + direction + " for " + prop);
+        }
+    }
+
+    // {limit, offset}, or null when the request has neither
+    protected static Expression[] limit(Object limit, Object skip) throws Exception {
+        if (limit == null && skip == null) {
+            return null;
+        }
+        return new Expression[]{
+                (limit == null) ? Expression.intValue(Integer.MAX_VALUE) : count(limit),
+                (skip == null) ? Expression.intValue(0) : count(skip)
+        };
+    }
+
+    protected static Expression count(Object src) throws Exception {
+        if (!(src instanceof Binder.Param)) {
+            count(src, 0);
+        }
+        return literal(src);
+    }
+
+    // a limit or skip value, or absent when the request has none; also for
+    // requests that don't run a query, see Lookup
+    protected static long count(Object src, long absent) throws Exception {
+        if (src == null) {
+            return absent;
+        }
+        double n = (src instanceof Number) ? ((Number) src).doubleValue() : -1;
+        if (n < 0 || n != Math.rint(n)) {
+            throw new Exception("limit and skip must be non-negative integers");
+        }
+        return ((Number) src).longValue();
+    }
+
+    protected static List<Result> run(Query q, QueryMetrics m) throws Exception {
+        if (m == null) {
+            return q.execute().allResults();
+        }
+        long start = System.nanoTime();
+        ResultSet rs = q.execute();
+        long executed = System.nanoTime();
+        List<Result> rows = rs.allResults();
+        m.executeNanos = executed - start;
+        m.iterateNanos = System.nanoTime() - executed;
+        m.rows = rows.size();
+        return rows;
+    }
+
+    // streaming entry points: the request is tokenized and translated in one
+    // pass without building a JSONObject. They bypass the query cache.
+    public static Query query(Database db, Reader req) throws Exception {
+        if (listeners.isEmpty()) {
+            return StreamParser.query(db, req);
+        }
+        // parse and build are a single pass here, reported as build time
+        QueryMetrics m = new QueryMetrics(db, null);
+        long start = System.nanoTime();
+        m.query = StreamParser.query(db, req);
+        m.buildNanos = System.nanoTime() - start;
+        report(m);
+        return m.query;
+    }
+
+    public static Query query(Database db, InputStream req) throws Exception {
+        return query(db, new InputStreamReader(req, "UTF-8"));
+    }
+
+    public static Query query(Database db, byte[] req) throws Exception {
+        return query(db, new ByteArrayInputStream(req));
+    }
+
+    public static PreparedQuery prepare(Database db, String req) throws Exception {
+        return prepare(db, new JSONObject(req));
+    }
+
+    // compiles req with every literal bound as a parameter, see Binder
+    public static PreparedQuery prepare(Database db, JSONObject req) throws Exception {
+        Binder b = Binder.rewrite(req);
+        String key = "?" + b.getShape();
+        QueryCache c = cache;
+        Query q = (c == null) ? null : c.get(db, key);
+        if (q == null) {
+            q = build(db, b.getRequest());
+            if (c != null) {
+                c.put(db, key, q);
+            }
+        }
+        // bound when it executes: q is shared with every prepare() of the shape
+        return new PreparedQuery(q, b.getShape(), b.getValues().size(), b.parameters());
+    }
+
+    // the request's rows, kept current from database changes, see MaterializedView
+    public static MaterializedView materialize(Database db, String req) throws Exception {
+        return materialize(db, new JSONObject(req), null);
+    }
+
+    public static MaterializedView materialize(Database db, JSONObject req, Executor executor) throws Exception {
+        return MaterializedView.open(db, req, executor);
+    }
+
+    // the request as a live query delivering coalesced row diffs, see LiveQuery
+    public static LiveQuery live(Database db, String req, long windowMillis, Executor executor, LiveQuery.Listener listener) throws Exception {
+        return live(db, new JSONObject(req), windowMillis, executor, listener);
+    }
+
+    public static LiveQuery live(Database db, JSONObject req, long windowMillis, Executor executor, LiveQuery.Listener listener) throws Exception {
+        return LiveQuery.open(db, req, windowMillis, executor, listener);
+    }
+
+    // a selector ({"name": ..., ...}, not a whole request) compiled for
+    // documents already in memory, see Predicate
+    public static Predicate predicate(String selector) throws Exception {
+        return predicate(new JSONObject(selector));
+    }
+
+    public static Predicate predicate(JSONObject selector) throws Exception {
+        return Predicate.compile(selector);
+    }
+
+    // how req's query runs: scans, temporary sorts and the index each selector
+    // property uses. Requests that find() answers by lookups or in chunks are
+    // explained as the single query they'd otherwise be.
+    public static QueryPlan explain(Database db, String req) throws Exception {
+        return explain(db, new JSONObject(req));
+    }
+
+    public static QueryPlan explain(Database db, JSONObject req) throws Exception {
+        return plan(compile(db, req, null), req);
+    }
+
+    protected static QueryPlan plan(Query q, JSONObject req) throws Exception {
+        Selector selector = (req == null || !req.has("selector"))
+                ? Selector.TRUE
+                : Selector.parse(req.getJSONObject("selector")).optimize();
+        return new QueryPlan(q.explain(), selector);
+    }
+
+    // CouchDB-style _index API, see Indexes
+    public static JSONObject createIndex(Database db, String req) throws Exception {
+        return createIndex(db, new JSONObject(req));
+    }
+
+    public static JSONObject createIndex(Database db, JSONObject req) throws Exception {
+        return Indexes.create(db, req);
+    }
+
+    public static JSONObject listIndexes(Database db) throws Exception {
+        return Indexes.list(db);
+    }
+
+    public static JSONObject deleteIndex(Database db, String name) throws Exception {
+        return Indexes.delete(db, name);
+    }
+
+    // the parts of a request that change the compiled query
+    public static String fingerprint(JSONObject req) throws Exception {
+        JSONObject key = new JSONObject();
+        key.put("selector", req.get("selector"));
+        key.put("fields", req.opt("fields"));
+        key.put("sort", req.opt("sort"));
+        key.put("limit", req.opt("limit"));
+        key.put("skip", req.opt("skip"));
+        key.put("aggregate", req.opt("aggregate"));
+        key.put("group_by", req.opt("group_by"));
+        key.put("having", req.opt("having"));
+        return Fingerprint.of(key);
+    }
+
+    protected static SelectResult[] fields(JSONObject q) throws Exception {
+        return fields(q, textIndex(q));
+    }
+
+    // text is the index _rank reads, see textIndex()
+    protected static SelectResult[] fields(JSONObject q, String text) throws Exception {
+        if (!q.has("fields")) {
+            return new SelectResult[]{SelectResult.all()};
+        }
+        try {
+            JSONArray req = q.getJSONArray("fields");
+            SelectResult[] fields = new SelectResult[req.length()];
+            for (int i = 0; i < req.length(); i++) {
+                String prop = req.getString(i);
+                fields[i] = field(prop, text);
+            }
+            return fields;
+        } catch (JSONException e) {
+            // e.printStackTrace();
+            throw(new Exception("Error parsing fields array"));
+        }
+    }
+
+    // _rank is the relevance of a $text match, from the index it searched
+    protected static SelectResult field(String prop, String text) throws Exception {
+        if ("_rank".equals(prop)) {
+            return SelectResult.expression(FullTextFunction.rank(rank(text))).as("_rank");
+        }
+        return field(prop);
+    }
+
+    // the index _rank reads
+    protected static String rank(String text) throws Exception {
+        if (text == null) {
+            throw new Exception("_rank needs a $text selector");
+        }
+        return text;
+    }
+
+    // the full-text index the request's $text searches, or null
+    protected static String textIndex(JSONObject req) throws Exception {
+        JSONObject selector = req.optJSONObject("selector");
+        return (selector == null) ? null : Selector.Text.index(selector);
+    }
+
+    protected static SelectResult field(String prop) {
+        switch (prop) {
+            case "_id":
+                return SelectResult.expression(Meta.id).as("_id");
+            case "_rev":
+                return SelectResult.expression(Meta.sequence).as("_rev");
+            default:
+                return SelectResult.property(prop);
+        }
+    }
+
+    public static Expression where(JSONObject q) throws Exception {
+        return parse(q.getJSONObject("selector"));
+    }
+
+    // the selector is parsed into a Selector tree and optimized before it
+    // becomes an Expression: used by where: {}, $and: [{}], $or: [{}], $nor: [{}], $not: {}
+    public static Expression parse(JSONObject src) throws Exception {
+        return Selector.parse(src).optimize().compile();
+    }
+
+    public static Expression and(JSONArray src) throws Exception {
+        return Selector.And.of(Selector.list(src)).optimize().compile();
+    }
+
+    public static Expression or(JSONArray src) throws Exception {
+        return Selector.Or.of(Selector.list(src)).optimize().compile();
+    }
+
+    public static Expression nor(JSONArray src) throws Exception {
+        return new Selector.Not(Selector.Or.of(Selector.list(src))).optimize().compile();
+    }
+
+    public static Expression not(JSONObject src) throws Exception {
+        return new Selector.Not(Selector.parse(src)).optimize().compile();
+    }
+
+    // a selector path: one whose root is in vars, the variables of the
+    // enclosing $elemMatch/$allMatch elements, is on that element
+    protected static Expression property(String prop, Set<String> vars) {
+        int dot = prop.indexOf('.');
+        if (vars.contains((dot < 0) ? prop : prop.substring(0, dot))) {
+            return ArrayExpression.variable(prop);
+        }
+        return property(prop);
+    }
+
+    // _id and _rev are document metadata, not body properties: as Meta.id the
+    // selector can use the primary key
+    protected static Expression property(String prop) {
+        switch (prop) {
+            case "_id":
+                return Meta.id;
+            case "_rev":
+                return Meta.sequence;
+            default:
+                return Expression.property(prop);
+        }
+    }
+
+    // a literal value, or a query parameter when the selector was prepared
+    protected static Expression literal(Object src) {
+        if (src instanceof Binder.Param) {
+            return Expression.parameter(((Binder.Param) src).name);
+        }
+        return Expression.value(src);
+    }
+
+    protected static Expression lt(Expression field, Object src) {
+        return field.lessThan(literal(src));
+    }
+
+    protected static Expression lte(Expression field, Object src) {
+        return field.lessThanOrEqualTo(literal(src));
+    }
+
+    protected static Expression eq(Expression field, Object src) {
+        return field.equalTo(literal(src));
+    }
+
+    protected static Expression between(Expression field, Object lower, Object upper) {
+        return field.between(literal(lower), literal(upper));
+    }
+
+    protected static Expression ne(Expression field, Object src) {
+        if (src == JSONObject.NULL) {
+            return field.notNullOrMissing();
+        }
+        return field.notEqualTo(literal(src));
+    }
+
+    protected static Expression gte(Expression field, Object src) {
+        return field.greaterThanOrEqualTo(literal(src));
+    }
+
+    protected static Expression gt(Expression field, Object src) {
+        if (src == JSONObject.NULL) {
+            return field.notNullOrMissing();
+        }
+        return field.greaterThan(literal(src));
+    }
+
+    protected static Expression exists(Expression field, Boolean check) {
+        return (check) ? field.notNullOrMissing() : field.isNullOrMissing();
+    }
+
+    protected static Expression[] literals(JSONArray src) throws JSONException {
+        Expression[] all = new Expression[src.length()];
+        for (int i = 0; i < src.length(); i++) {
+            all[i] = literal(src.get(i));
+        }
+        return all;
+    }
+
+    protected static Expression[] literals(List<?> src) {
+        Expression[] all = new Expression[src.size()];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = literal(src.get(i));
+        }
+        return all;
+    }
+
+    protected static Expression in(String prop, JSONArray src) throws JSONException {
+        return in(property(prop), literals(src));
+    }
+
+    protected static Expression in(Expression field, Expression[] all) {
+        return field.in(all);
+    }
+
+    protected static Expression all(String prop, JSONArray src) throws JSONException {
+        return all(prop, property(prop), literals(src));
+    }
+
+    protected static Expression all(String prop, Expression field, Expression[] all) {
+        VariableExpression m = ArrayExpression.variable("__all_" + prop + "__");
+
+        return ArrayExpression.every(m).in(field).satisfies(m.in(all));
+    }
+
+    protected static Expression elemMatch(String prop, JSONArray src) throws JSONException {
+        return elemMatch(prop, property(prop), literals(src));
+    }
+
+    protected static Expression elemMatch(String prop, Expression field, Expression[] all) {
+        VariableExpression m = ArrayExpression.variable("__elem_match_" + prop + "__");
+
+        return ArrayExpression.any(m).in(field).satisfies(m.in(all));
+    }
+
+    // element is the sub-selector compiled on variable, see Selector.Match
+    protected static Expression elemMatch(Expression array, String variable, Expression element) {
+        return ArrayExpression.any(ArrayExpression.variable(variable)).in(array).satisfies(element);
+    }
+
+    // like CouchDB's $allMatch, false for an empty array
+    protected static Expression allMatch(Expression array, String variable, Expression element) {
+        return ArrayExpression.anyAndEvery(ArrayExpression.variable(variable)).in(array).satisfies(element);
+    }
+
+    protected static Expression nin(String prop, JSONArray src) throws JSONException {
+        return nin(property(prop), literals(src));
+    }
+
+    protected static Expression nin(Expression field, Expression[] all) {
+        return Expression.not(in(field, all));
+    }
+
+    protected static Expression mod(Expression field, Double n) {
+        return field.modulo(Expression.doubleValue(n));
+    }
+
+    // prefix <= lower(prop) < prefix + U+FFFF, see RegexPrefix
+    protected static Expression lowerPrefix(Expression field, String prefix) {
+        Expression lower = Function.lower(field);
+        return lower.greaterThanOrEqualTo(Expression.string(prefix))
+                .and(lower.lessThan(Expression.string(prefix + RegexPrefix.MAX)));
+    }
+
+    protected static Expression text(String index, String query) {
+        return FullTextExpression.index(index).match(query);
+    }
+
+    protected static Expression regex(Expression field, String pattern) {
+        return field.regex(Expression.string(pattern));
+    }
+
+    protected static Expression size(Expression field, Double len) {
+        return ArrayFunction.length(field).equalTo(Expression.number(len));
+    }
+}
\ No newline at end of file
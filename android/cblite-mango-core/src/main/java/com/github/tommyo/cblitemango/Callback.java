@@ -0,0 +1,8 @@
+package com.github.tommyo.cblitemango;
+
+// the outcome of an asynchronous call, delivered on the worker thread
+interface Callback<T> {
+    void onResult(T result);
+
+    void onError(Throwable error);
+}
@@ -0,0 +1,14 @@
+package com.github.tommyo.cblitemango;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// the result column a field is read from, when it isn't named after it:
+// @Column("_id") String id;
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+@interface Column {
+    String value();
+}
@@ -0,0 +1,26 @@
+package com.github.tommyo.cblitemango;
+
+import com.couchbase.lite.Result;
+
+import java.util.List;
+
+// one page of rows and the bookmark to pass back for the next one. Each row
+// ends with the __bookmark_N columns the next bookmark is read from, after
+// the requested fields, see Bookmark.
+class FindResult {
+    private final List<Result> docs;
+    private final String bookmark;
+
+    FindResult(List<Result> docs, String bookmark) {
+        this.docs = docs;
+        this.bookmark = bookmark;
+    }
+
+    public List<Result> getDocs() {
+        return docs;
+    }
+
+    public String getBookmark() {
+        return bookmark;
+    }
+}
@@ -0,0 +1,109 @@
+package com.github.tommyo.cblitemango;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+// canonical, whitespace-free JSON with sorted keys, so that equivalent
+// requests produce the same cache key regardless of how they were written
+class Fingerprint {
+    public static String of(Object val) throws JSONException {
+        StringBuilder out = new StringBuilder();
+        write(out, val);
+        return out.toString();
+    }
+
+    protected static void write(StringBuilder out, Object val) throws JSONException {
+        if (val instanceof JSONObject) {
+            JSONObject obj = (JSONObject) val;
+            String[] keys = keys(obj);
+            out.append('{');
+            for (int i = 0; i < keys.length; i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.append(JSONObject.quote(keys[i])).append(':');
+                write(out, obj.get(keys[i]));
+            }
+            out.append('}');
+        } else if (val instanceof JSONArray) {
+            JSONArray arr = (JSONArray) val;
+            out.append('[');
+            for (int i = 0; i < arr.length(); i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                write(out, arr.get(i));
+            }
+            out.append(']');
+        } else if (val instanceof Map) {
+            // literals from the streaming parser and the selector tree
+            Map<?, ?> map = (Map<?, ?>) val;
+            String[] keys = new String[map.size()];
+            int n = 0;
+            for (Object key : map.keySet()) {
+                keys[n++] = String.valueOf(key);
+            }
+            Arrays.sort(keys);
+            out.append('{');
+            for (int i = 0; i < keys.length; i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.append(JSONObject.quote(keys[i])).append(':');
+                write(out, map.get(keys[i]));
+            }
+            out.append('}');
+        } else if (val instanceof Collection) {
+            out.append('[');
+            boolean first = true;
+            for (Object item : (Collection<?>) val) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                write(out, item);
+            }
+            out.append(']');
+        } else if (val instanceof String) {
+            out.append(JSONObject.quote((String) val));
+        } else if (val instanceof Number) {
+            number(out, (Number) val);
+        } else if (val == null || val == JSONObject.NULL) {
+            out.append("null");
+        } else {
+            out.append(val.toString());
+        }
+    }
+
+    // 5, 5L and 5.0 compare equal in the query, so they share a key
+    protected static void number(StringBuilder out, Number n) {
+        if (n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte) {
+            out.append(n.longValue());
+            return;
+        }
+        double d = n.doubleValue();
+        if (d == Math.rint(d) && Math.abs(d) < 1e15) {
+            out.append((long) d);
+        } else {
+            out.append(d);
+        }
+    }
+
+    protected static String[] keys(JSONObject obj) throws JSONException {
+        JSONArray names = obj.names();
+        if (names == null) {
+            return new String[0];
+        }
+        String[] keys = new String[names.length()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = names.getString(i);
+        }
+        Arrays.sort(keys);
+        return keys;
+    }
+}
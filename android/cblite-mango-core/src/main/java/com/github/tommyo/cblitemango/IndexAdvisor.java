@@ -0,0 +1,284 @@
+package com.github.tommyo.cblitemango;
+
+import com.couchbase.lite.Database;
+import com.couchbase.lite.Query;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+
+// watches executed queries (register with CBLiteMango.addMetricsListener) and
+// suggests composite value indexes for the shapes that scan the whole table,
+// ranked by the time spent in them. With an executor it also creates them.
+class IndexAdvisor implements MetricsListener {
+    private final Executor executor;
+    private final long minCount;
+    private final long minNanos;
+
+    private final Map<Database, Map<String, Usage>> databases = new WeakHashMap<>();
+
+    // recommend only
+    public IndexAdvisor() {
+        this(null, 0, 0);
+    }
+
+    // create the advised index on executor once a shape ran at least minCount
+    // times and spent at least minNanos executing in total
+    public IndexAdvisor(Executor executor, long minCount, long minNanos) {
+        this.executor = executor;
+        this.minCount = minCount;
+        this.minNanos = minNanos;
+    }
+
+    public static class Advice {
+        final Database db;
+        final String shape;
+        final List<String> fields;
+        long count;
+        long nanos;
+        // null until the plan was checked
+        Boolean scan;
+        // a check is queued
+        boolean checking;
+        boolean created;
+
+        Advice(Database db, String shape, List<String> fields) {
+            this.db = db;
+            this.shape = shape;
+            this.fields = fields;
+        }
+
+        public Database getDatabase() {
+            return db;
+        }
+
+        public String getShape() {
+            return shape;
+        }
+
+        // index fields: equality, then sort, then one range field
+        public List<String> getFields() {
+            return fields;
+        }
+
+        public String getName() {
+            return Indexes.name(fields);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        // execute and iteration time summed over all runs
+        public long getNanos() {
+            return nanos;
+        }
+
+        public boolean isScan() {
+            return Boolean.TRUE.equals(scan);
+        }
+
+        public boolean isCreated() {
+            return created;
+        }
+
+        public JSONObject toIndex() throws Exception {
+            return new JSONObject()
+                    .put("index", new JSONObject().put("fields", new JSONArray(fields)))
+                    .put("name", getName());
+        }
+    }
+
+    private static class Usage {
+        // null when no property of the shape can seek an index
+        Advice advice;
+    }
+
+    @Override
+    public void onQuery(QueryMetrics m) {
+        String shape = m.getShape();
+        if (shape == null || m.getRows() < 0) {
+            // streamed, or compiled but not executed
+            return;
+        }
+        // lookups, LargeIn and cached results run no query of the shape
+        Query query = m.getQuery();
+        Advice advice;
+        boolean explain = false;
+        boolean build = false;
+        synchronized (this) {
+            Map<String, Usage> shapes = databases.get(m.getDatabase());
+            if (shapes == null) {
+                shapes = new HashMap<>();
+                databases.put(m.getDatabase(), shapes);
+            }
+            Usage usage = shapes.get(shape);
+            if (usage == null) {
+                usage = new Usage();
+                shapes.put(shape, usage);
+                try {
+                    List<String> fields = fields(m.getRequest());
+                    if (!fields.isEmpty()) {
+                        usage.advice = new Advice(m.getDatabase(), shape, fields);
+                    }
+                } catch (Exception e) {
+                    // not a shape we can advise on
+                }
+            }
+            advice = usage.advice;
+            if (advice == null) {
+                return;
+            }
+            advice.count++;
+            advice.nanos += m.getExecuteNanos() + m.getIterateNanos();
+            if (advice.scan == null) {
+                // else a later run of the shape explains it
+                explain = query != null && !advice.checking;
+                advice.checking |= explain;
+            } else {
+                build = executor != null && shouldCreate(advice);
+            }
+        }
+        if (explain) {
+            check(advice, query);
+        } else if (build) {
+            create(advice);
+        }
+    }
+
+    // scanning shapes with the most time spent first
+    public synchronized List<Advice> recommendations() {
+        List<Advice> out = new ArrayList<>();
+        for (Map<String, Usage> shapes : databases.values()) {
+            for (Usage usage : shapes.values()) {
+                if (usage.advice != null && usage.advice.isScan() && !usage.advice.created) {
+                    out.add(usage.advice);
+                }
+            }
+        }
+        Collections.sort(out, new Comparator<Advice>() {
+            @Override
+            public int compare(Advice a, Advice b) {
+                return Long.compare(b.nanos, a.nanos);
+            }
+        });
+        return out;
+    }
+
+    public synchronized void reset() {
+        databases.clear();
+    }
+
+    protected void check(final Advice advice, final Query q) {
+        Runnable explain = new Runnable() {
+            @Override
+            public void run() {
+                boolean scan;
+                try {
+                    scan = new QueryPlan(q.explain(), Selector.TRUE).isScan();
+                } catch (Exception e) {
+                    scan = false;
+                }
+                synchronized (IndexAdvisor.this) {
+                    advice.scan = scan;
+                    advice.checking = false;
+                }
+            }
+        };
+        if (executor == null) {
+            explain.run();
+        } else {
+            executor.execute(explain);
+        }
+    }
+
+    protected synchronized boolean shouldCreate(Advice advice) {
+        if (advice.created || !advice.isScan() || advice.count < minCount || advice.nanos < minNanos) {
+            return false;
+        }
+        // claimed here so that concurrent queries don't queue it twice
+        advice.created = true;
+        return true;
+    }
+
+    protected void create(final Advice advice) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Indexes.create(advice.db, advice.toIndex());
+                } catch (Exception e) {
+                    synchronized (IndexAdvisor.this) {
+                        advice.created = false;
+                    }
+                }
+            }
+        });
+    }
+
+    // properties that an index seek could use: equality (and $in) conditions
+    // of the top-level conjunction, then sort fields, then one range field
+    protected static List<String> fields(JSONObject req) throws Exception {
+        TreeSet<String> equality = new TreeSet<>();
+        TreeSet<String> range = new TreeSet<>();
+        conjunction(req.getJSONObject("selector"), equality, range);
+
+        List<String> out = new ArrayList<>(equality);
+        JSONArray sort = req.optJSONArray("sort");
+        if (sort != null) {
+            for (int i = 0; i < sort.length(); i++) {
+                String field = Indexes.field(sort.get(i));
+                if (!out.contains(field)) {
+                    out.add(field);
+                }
+            }
+        }
+        for (String field : range) {
+            if (!out.contains(field)) {
+                out.add(field);
+                break;
+            }
+        }
+        out.remove("_id");
+        out.remove("_rev");
+        return out;
+    }
+
+    protected static void conjunction(JSONObject selector, TreeSet<String> equality, TreeSet<String> range) throws Exception {
+        JSONArray keys = selector.names();
+        if (keys == null) {
+            return;
+        }
+        for (int i = 0; i < keys.length(); i++) {
+            String key = keys.getString(i);
+            Object val = selector.get(key);
+            if ("$and".equals(key)) {
+                JSONArray and = (JSONArray) val;
+                for (int j = 0; j < and.length(); j++) {
+                    conjunction(and.getJSONObject(j), equality, range);
+                }
+            } else if (key.startsWith("$")) {
+                // $or, $nor, $not can't seek a single index
+                continue;
+            } else if (!(val instanceof JSONObject)) {
+                equality.add(key);
+            } else {
+                JSONObject ops = (JSONObject) val;
+                if (ops.has("$eq") || ops.has("$in")) {
+                    equality.add(key);
+                } else if (ops.has("$gt") || ops.has("$gte") || ops.has("$lt") || ops.has("$lte")) {
+                    range.add(key);
+                }
+            }
+        }
+    }
+}
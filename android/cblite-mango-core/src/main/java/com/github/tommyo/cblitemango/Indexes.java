@@ -0,0 +1,238 @@
+package com.github.tommyo.cblitemango;
+
+import com.couchbase.lite.Database;
+import com.couchbase.lite.Expression;
+import com.couchbase.lite.FullTextIndex;
+import com.couchbase.lite.FullTextIndexItem;
+import com.couchbase.lite.Function;
+import com.couchbase.lite.IndexBuilder;
+import com.couchbase.lite.ValueIndexItem;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// CouchDB _index requests mapped onto Couchbase Lite value and full-text indexes
+class Indexes {
+    // the index {"$text": "words"} searches
+    static final String TEXT = "mango-text";
+
+    // database path -> names of the text indexes create() made
+    private static final Map<String, Set<String>> texts = new HashMap<>();
+
+    // a value index field: a property, or lower(property) for {"$lower": prop}
+    static class Field {
+        final String prop;
+        final boolean lower;
+
+        Field(String prop, boolean lower) {
+            this.prop = prop;
+            this.lower = lower;
+        }
+
+        ValueIndexItem item() {
+            return lower
+                    ? ValueIndexItem.expression(Function.lower(Expression.property(prop)))
+                    : ValueIndexItem.property(prop);
+        }
+
+        // as it appears in a generated index name
+        @Override
+        public String toString() {
+            return lower ? "lower(" + prop + ")" : prop;
+        }
+    }
+
+    // {"index": {"fields": ["type", {"level": "desc"}]}, "name": "...", "type": "json"}
+    // {"index": {"fields": ["body", {"name": "title", "type": "string"}],
+    //  "language": "en", "ignore_diacritics": true}, "name": "...", "type": "text"}
+    public static JSONObject create(Database db, JSONObject req) throws Exception {
+        String type = req.optString("type", "json");
+        if (!"json".equals(type) && !"text".equals(type)) {
+            throw new Exception("Unsupported index type " + type);
+        }
+        JSONObject def = req.getJSONObject("index");
+        if (def.has("partial_filter_selector")) {
+            throw new Exception("partial_filter_selector is not supported");
+        }
+        boolean text = "text".equals(type);
+        List<String> props = text ? textFields(def.getJSONArray("fields")) : null;
+        List<Field> fields = text ? null : fields(def.getJSONArray("fields"));
+        String name = req.has("name") ? req.getString("name") : (text ? TEXT : name(names(fields)));
+
+        JSONObject out = new JSONObject();
+        out.put("name", name);
+        if (db.getIndexes().contains(name)) {
+            out.put("result", "exists");
+            return out;
+        }
+        if (text) {
+            FullTextIndexItem[] items = new FullTextIndexItem[props.size()];
+            for (int i = 0; i < items.length; i++) {
+                items[i] = FullTextIndexItem.property(props.get(i));
+            }
+            FullTextIndex index = IndexBuilder.fullTextIndex(items);
+            if (def.has("language")) {
+                index.setLanguage(def.getString("language"));
+            }
+            if (def.has("ignore_diacritics")) {
+                index.ignoreAccents(def.getBoolean("ignore_diacritics"));
+            }
+            db.createIndex(name, index);
+            recordText(db, name, true);
+        } else {
+            ValueIndexItem[] items = new ValueIndexItem[fields.size()];
+            for (int i = 0; i < items.length; i++) {
+                items[i] = fields.get(i).item();
+            }
+            db.createIndex(name, IndexBuilder.valueIndex(items));
+            recordText(db, name, false);
+        }
+        out.put("result", "created");
+        return out;
+    }
+
+    // names, or {"name": ..., "type": "string"} as Cloudant writes them
+    protected static List<String> textFields(JSONArray src) throws Exception {
+        List<String> fields = new ArrayList<>();
+        for (int i = 0; i < src.length(); i++) {
+            Object item = src.get(i);
+            if (item instanceof JSONObject) {
+                JSONObject field = (JSONObject) item;
+                if (!"string".equals(field.optString("type", "string"))) {
+                    throw new Exception("Full-text index fields must be strings");
+                }
+                fields.add(field.getString("name"));
+            } else {
+                fields.add((String) item);
+            }
+        }
+        if (fields.isEmpty()) {
+            throw new Exception("Index needs at least one field");
+        }
+        return fields;
+    }
+
+    public static JSONObject list(Database db) throws Exception {
+        JSONArray indexes = new JSONArray();
+
+        // the primary key, always there
+        JSONObject all = new JSONObject();
+        all.put("ddoc", JSONObject.NULL);
+        all.put("name", "_all_docs");
+        all.put("type", "special");
+        all.put("def", new JSONObject().put("fields", new JSONArray().put(new JSONObject().put("_id", "asc"))));
+        indexes.put(all);
+
+        for (String name : db.getIndexes()) {
+            JSONObject index = new JSONObject();
+            index.put("ddoc", JSONObject.NULL);
+            index.put("name", name);
+            index.put("type", isText(db, name) ? "text" : "json");
+            indexes.put(index);
+        }
+
+        JSONObject out = new JSONObject();
+        out.put("total_rows", indexes.length());
+        out.put("indexes", indexes);
+        return out;
+    }
+
+    // Couchbase Lite lists index names only, so the type is the one create()
+    // recorded. Text indexes made by another process are text only when
+    // named mango-text.
+    protected static boolean isText(Database db, String name) {
+        if (name.equals(TEXT)) {
+            return true;
+        }
+        synchronized (texts) {
+            Set<String> names = texts.get(db.getPath());
+            return names != null && names.contains(name);
+        }
+    }
+
+    protected static void recordText(Database db, String name, boolean text) {
+        synchronized (texts) {
+            Set<String> names = texts.get(db.getPath());
+            if (text) {
+                if (names == null) {
+                    names = new HashSet<>();
+                    texts.put(db.getPath(), names);
+                }
+                names.add(name);
+            } else if (names != null) {
+                names.remove(name);
+            }
+        }
+    }
+
+    public static JSONObject delete(Database db, String name) throws Exception {
+        if (!db.getIndexes().contains(name)) {
+            throw new Exception("Index " + name + " not found");
+        }
+        db.deleteIndex(name);
+        recordText(db, name, false);
+        return new JSONObject().put("ok", true);
+    }
+
+    // field names in order; sort directions are dropped, an index serves both.
+    // _id and _rev are the primary key and sequence, never value-indexed.
+    // {"$lower": "name"} indexes lower(name), for case-insensitive $regex
+    // prefixes, see RegexPrefix.
+    protected static List<Field> fields(JSONArray src) throws Exception {
+        List<Field> fields = new ArrayList<>();
+        for (int i = 0; i < src.length(); i++) {
+            Object item = src.get(i);
+            Field field = (item instanceof JSONObject && ((JSONObject) item).has("$lower"))
+                    ? new Field(((JSONObject) item).getString("$lower"), true)
+                    : new Field(field(item), false);
+            if (field.lower || (!"_id".equals(field.prop) && !"_rev".equals(field.prop))) {
+                fields.add(field);
+            }
+        }
+        if (fields.isEmpty()) {
+            throw new Exception("Index needs at least one field besides _id and _rev");
+        }
+        return fields;
+    }
+
+    protected static String field(Object src) throws JSONException {
+        if (src instanceof JSONObject) {
+            JSONObject sort = (JSONObject) src;
+            return sort.names().getString(0);
+        }
+        return (String) src;
+    }
+
+    // the property of a "lower(prop)" segment of a generated index name, else
+    // null. Names are all the plan shows; create() itself uses Field.
+    protected static String lowered(String field) {
+        if (field.startsWith("lower(") && field.endsWith(")")) {
+            return field.substring("lower(".length(), field.length() - 1);
+        }
+        return null;
+    }
+
+    protected static List<String> names(List<Field> fields) {
+        List<String> out = new ArrayList<>();
+        for (Field field : fields) {
+            out.add(field.toString());
+        }
+        return out;
+    }
+
+    protected static String name(List<String> fields) {
+        StringBuilder name = new StringBuilder("mango");
+        for (String field : fields) {
+            name.append('-').append(field);
+        }
+        return name.toString();
+    }
+}
@@ -0,0 +1,411 @@
+package com.github.tommyo.cblitemango;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// minimal pull tokenizer over a Reader; tokens are consumed in document order
+// and nothing is kept beyond the current token. As a Selector.Source it feeds
+// a selector to the same grammar as a JSONObject.
+class JsonPullParser implements Selector.Source {
+    enum Token {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_OBJECT = 2;
+    private static final int DANGLING_NAME = 3;
+    private static final int NONEMPTY_OBJECT = 4;
+    private static final int EMPTY_ARRAY = 5;
+    private static final int NONEMPTY_ARRAY = 6;
+
+    private final Reader in;
+    private final char[] buffer = new char[1024];
+    private int pos = 0;
+    private int limit = 0;
+
+    private int[] stack = new int[32];
+    private int depth = 1;
+
+    private Token peeked;
+    private boolean bool;
+    // current name, string or number text
+    private final StringBuilder text = new StringBuilder();
+
+    public JsonPullParser(Reader in) {
+        this.in = in;
+        stack[0] = EMPTY_DOCUMENT;
+    }
+
+    public Token peek() throws IOException {
+        if (peeked != null) {
+            return peeked;
+        }
+        int c;
+        switch (stack[depth - 1]) {
+            case EMPTY_DOCUMENT:
+                stack[depth - 1] = NONEMPTY_DOCUMENT;
+                break;
+            case NONEMPTY_DOCUMENT:
+                if (nextNonWhitespace() != -1) {
+                    throw syntax("Expected end of document");
+                }
+                return peeked = Token.END_DOCUMENT;
+            case EMPTY_ARRAY:
+                stack[depth - 1] = NONEMPTY_ARRAY;
+                c = nextNonWhitespace();
+                if (c == ']') {
+                    return peeked = Token.END_ARRAY;
+                }
+                if (c != -1) {
+                    pos--;
+                }
+                break;
+            case NONEMPTY_ARRAY:
+                c = nextNonWhitespace();
+                if (c == ']') {
+                    return peeked = Token.END_ARRAY;
+                }
+                if (c != ',') {
+                    throw syntax("Expected ',' or ']'");
+                }
+                break;
+            case EMPTY_OBJECT:
+            case NONEMPTY_OBJECT:
+                c = nextNonWhitespace();
+                if (c == '}') {
+                    return peeked = Token.END_OBJECT;
+                }
+                if (stack[depth - 1] == NONEMPTY_OBJECT) {
+                    if (c != ',') {
+                        throw syntax("Expected ',' or '}'");
+                    }
+                    c = nextNonWhitespace();
+                }
+                if (c != '"') {
+                    throw syntax("Expected name");
+                }
+                stack[depth - 1] = DANGLING_NAME;
+                readString();
+                return peeked = Token.NAME;
+            case DANGLING_NAME:
+                if (nextNonWhitespace() != ':') {
+                    throw syntax("Expected ':'");
+                }
+                stack[depth - 1] = NONEMPTY_OBJECT;
+                break;
+        }
+        return peeked = value();
+    }
+
+    @Override
+    public boolean isObject() throws IOException {
+        return peek() == Token.BEGIN_OBJECT;
+    }
+
+    @Override
+    public boolean isArray() throws IOException {
+        return peek() == Token.BEGIN_ARRAY;
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        Token t = peek();
+        return t != Token.END_OBJECT && t != Token.END_ARRAY && t != Token.END_DOCUMENT;
+    }
+
+    @Override
+    public void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    @Override
+    public void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        depth--;
+    }
+
+    @Override
+    public void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    @Override
+    public void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        depth--;
+    }
+
+    @Override
+    public String nextName() throws IOException {
+        expect(Token.NAME);
+        return text.toString();
+    }
+
+    public String nextString() throws IOException {
+        Token t = peek();
+        if (t != Token.STRING && t != Token.NUMBER) {
+            throw syntax("Expected a string but was " + t);
+        }
+        peeked = null;
+        return text.toString();
+    }
+
+    public boolean nextBoolean() throws IOException {
+        expect(Token.BOOLEAN);
+        return bool;
+    }
+
+    public void nextNull() throws IOException {
+        expect(Token.NULL);
+    }
+
+    public double nextDouble() throws IOException {
+        expect(Token.NUMBER);
+        return Double.parseDouble(text.toString());
+    }
+
+    // Long when the number is integral and fits, Double otherwise
+    public Number nextNumber() throws IOException {
+        expect(Token.NUMBER);
+        int len = text.length();
+        boolean negative = text.charAt(0) == '-';
+        int start = negative ? 1 : 0;
+        if (len - start < 19) {
+            long n = 0;
+            int i = start;
+            for (; i < len; i++) {
+                char c = text.charAt(i);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                n = n * 10 + (c - '0');
+            }
+            if (i == len) {
+                return negative ? -n : n;
+            }
+        }
+        return Double.parseDouble(text.toString());
+    }
+
+    // a scalar, or a List/Map for nested literals; null is JSONObject.NULL as in org.json
+    @Override
+    public Object nextValue() throws IOException {
+        switch (peek()) {
+            case STRING:
+                return nextString();
+            case NUMBER:
+                return nextNumber();
+            case BOOLEAN:
+                return nextBoolean();
+            case NULL:
+                nextNull();
+                return JSONObject.NULL;
+            case BEGIN_ARRAY:
+                List<Object> list = new ArrayList<>();
+                beginArray();
+                while (hasNext()) {
+                    list.add(nextValue());
+                }
+                endArray();
+                return list;
+            case BEGIN_OBJECT:
+                Map<String, Object> map = new LinkedHashMap<>();
+                beginObject();
+                while (hasNext()) {
+                    String name = nextName();
+                    map.put(name, nextValue());
+                }
+                endObject();
+                return map;
+            default:
+                throw syntax("Expected a value but was " + peek());
+        }
+    }
+
+    public void skipValue() throws IOException {
+        int count = 0;
+        do {
+            switch (peek()) {
+                case BEGIN_OBJECT:
+                    beginObject();
+                    count++;
+                    break;
+                case BEGIN_ARRAY:
+                    beginArray();
+                    count++;
+                    break;
+                case END_OBJECT:
+                    endObject();
+                    count--;
+                    break;
+                case END_ARRAY:
+                    endArray();
+                    count--;
+                    break;
+                case END_DOCUMENT:
+                    throw syntax("Unexpected end of document");
+                default:
+                    peeked = null;
+                    break;
+            }
+        } while (count != 0);
+    }
+
+    private void expect(Token t) throws IOException {
+        Token got = peek();
+        if (got != t) {
+            throw syntax("Expected " + t + " but was " + got);
+        }
+        peeked = null;
+    }
+
+    private void push(int scope) {
+        if (depth == stack.length) {
+            int[] grown = new int[depth * 2];
+            System.arraycopy(stack, 0, grown, 0, depth);
+            stack = grown;
+        }
+        stack[depth++] = scope;
+    }
+
+    private Token value() throws IOException {
+        int c = nextNonWhitespace();
+        switch (c) {
+            case '{':
+                return Token.BEGIN_OBJECT;
+            case '[':
+                return Token.BEGIN_ARRAY;
+            case '"':
+                readString();
+                return Token.STRING;
+            case 't':
+                literal("rue");
+                bool = true;
+                return Token.BOOLEAN;
+            case 'f':
+                literal("alse");
+                bool = false;
+                return Token.BOOLEAN;
+            case 'n':
+                literal("ull");
+                return Token.NULL;
+            case -1:
+                throw syntax("Unexpected end of document");
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    readNumber(c);
+                    return Token.NUMBER;
+                }
+                throw syntax("Unexpected character '" + (char) c + "'");
+        }
+    }
+
+    private void literal(String rest) throws IOException {
+        for (int i = 0; i < rest.length(); i++) {
+            if (read() != rest.charAt(i)) {
+                throw syntax("Invalid literal");
+            }
+        }
+    }
+
+    private void readNumber(int first) throws IOException {
+        text.setLength(0);
+        text.append((char) first);
+        while (true) {
+            int c = read();
+            if ((c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+                text.append((char) c);
+            } else {
+                if (c != -1) {
+                    pos--;
+                }
+                return;
+            }
+        }
+    }
+
+    private void readString() throws IOException {
+        text.setLength(0);
+        while (true) {
+            int c = read();
+            if (c == '"') {
+                return;
+            }
+            if (c == -1) {
+                throw syntax("Unterminated string");
+            }
+            if (c != '\\') {
+                text.append((char) c);
+                continue;
+            }
+            c = read();
+            switch (c) {
+                case 'b':
+                    text.append('\b');
+                    break;
+                case 'f':
+                    text.append('\f');
+                    break;
+                case 'n':
+                    text.append('\n');
+                    break;
+                case 'r':
+                    text.append('\r');
+                    break;
+                case 't':
+                    text.append('\t');
+                    break;
+                case 'u':
+                    int u = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int h = Character.digit(read(), 16);
+                        if (h < 0) {
+                            throw syntax("Invalid escape");
+                        }
+                        u = (u << 4) | h;
+                    }
+                    text.append((char) u);
+                    break;
+                case -1:
+                    throw syntax("Unterminated string");
+                default:
+                    text.append((char) c);
+                    break;
+            }
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        while (true) {
+            int c = read();
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return c;
+            }
+        }
+    }
+
+    private int read() throws IOException {
+        if (pos == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            pos = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[pos++];
+    }
+
+    private IOException syntax(String message) {
+        return new IOException(message + " near character " + pos);
+    }
+}
@@ -0,0 +1,352 @@
+package com.github.tommyo.cblitemango;
+
+import com.couchbase.lite.Database;
+import com.couchbase.lite.Dictionary;
+import com.couchbase.lite.Result;
+import com.couchbase.lite.ResultSet;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// a top-level $in or $nin with more values than the threshold is not compiled
+// into one statement. The list is sorted and deduplicated first; then
+//  - $in runs as one query per chunk of values, all chunks of a size sharing
+//    one prepared statement, and the rows are merged back in sort order
+//  - $nin runs the query without it and drops the rows whose value is in the
+//    list, found by binary search
+// Sort fields and the $nin field missing from "fields" are appended as extra
+// columns, so that the rows can be compared and filtered. docs() drops them
+// from its maps; Results can't hide them, so find() runs those requests as
+// one query instead.
+class LargeIn {
+    private static volatile int threshold = 1000;
+    private static volatile int chunkSize = 500;
+
+    // lists longer than threshold are split into chunks of chunkSize values
+    public static void setLimits(int threshold, int chunkSize) {
+        if (chunkSize < 1 || threshold < chunkSize) {
+            throw new IllegalArgumentException("Need 0 < chunkSize <= threshold");
+        }
+        LargeIn.threshold = threshold;
+        LargeIn.chunkSize = chunkSize;
+    }
+
+    public static int getThreshold() {
+        return threshold;
+    }
+
+    public static int getChunkSize() {
+        return chunkSize;
+    }
+
+    static class Key {
+        final String prop;
+        final boolean desc;
+
+        Key(String prop, boolean desc) {
+            this.prop = prop;
+            this.desc = desc;
+        }
+    }
+
+    final String prop;
+    final String op;
+    // sorted, distinct
+    final List<Object> values;
+    final List<Key> keys;
+    // columns added to "fields", for the caller to hide
+    final List<String> extra = new ArrayList<>();
+
+    private LargeIn(String prop, String op, List<Object> values, List<Key> keys) {
+        this.prop = prop;
+        this.op = op;
+        this.values = values;
+        this.keys = keys;
+    }
+
+    // the longest top-level $in or $nin over the threshold, or null when req
+    // runs as a single query
+    public static LargeIn of(JSONObject req) throws Exception {
+        JSONObject selector = req.optJSONObject("selector");
+        if (selector == null || Aggregate.is(req)) {
+            // aggregates of separate chunks can't be merged
+            return null;
+        }
+        String prop = null;
+        String op = null;
+        JSONArray list = null;
+        Iterator<String> it = selector.keys();
+        while (it.hasNext()) {
+            String key = it.next();
+            JSONObject ops = selector.optJSONObject(key);
+            if (key.startsWith("$") || ops == null) {
+                continue;
+            }
+            for (String o : new String[]{"$in", "$nin"}) {
+                JSONArray values = ops.optJSONArray(o);
+                if (values != null && values.length() > threshold && (list == null || values.length() > list.length())) {
+                    prop = key;
+                    op = o;
+                    list = values;
+                }
+            }
+        }
+        if (list == null) {
+            return null;
+        }
+
+        JSONArray fields = req.optJSONArray("fields");
+        List<Key> keys = keys(req.optJSONArray("sort"));
+        List<String> needed = new ArrayList<>();
+        for (Key k : keys) {
+            needed.add(k.prop);
+        }
+        if ("$nin".equals(op)) {
+            needed.add(prop);
+        }
+        if (fields == null) {
+            // whole documents: body properties can be read, _id and _rev can't
+            if (needed.contains("_id") || needed.contains("_rev")) {
+                return null;
+            }
+        }
+
+        List<Object> values = new ArrayList<>(list.length());
+        for (int i = 0; i < list.length(); i++) {
+            values.add(list.get(i));
+        }
+        values = Values.distinct(values);
+        Collections.sort(values, Values.COLLATION);
+
+        LargeIn out = new LargeIn(prop, op, values, keys);
+        if (fields != null) {
+            List<String> have = new ArrayList<>();
+            for (int i = 0; i < fields.length(); i++) {
+                have.add(fields.getString(i));
+            }
+            for (String field : needed) {
+                if (!have.contains(field) && !out.extra.contains(field)) {
+                    out.extra.add(field);
+                }
+            }
+        }
+        return out;
+    }
+
+    protected static List<Key> keys(JSONArray sort) throws Exception {
+        List<Key> keys = new ArrayList<>();
+        if (sort != null) {
+            for (int i = 0; i < sort.length(); i++) {
+                Object src = sort.get(i);
+                String prop = Indexes.field(src);
+                String direction = (src instanceof JSONObject) ? ((JSONObject) src).getString(prop) : "asc";
+                keys.add(new Key(prop, "desc".equals(direction)));
+            }
+        }
+        return keys;
+    }
+
+    public List<Result> find(Database db, JSONObject req, QueryMetrics m) throws Exception {
+        long skip = req.has("skip") ? req.getLong("skip") : 0;
+        long limit = req.has("limit") ? req.getLong("limit") : Integer.MAX_VALUE;
+        if (skip < 0 || limit < 0) {
+            throw new Exception("limit and skip must be non-negative integers");
+        }
+        long start = (m == null) ? 0 : System.nanoTime();
+        List<Result> rows = "$in".equals(op)
+                ? in(db, req, skip + limit)
+                : nin(db, req, skip + limit);
+        rows = rows.subList((int) Math.min(skip, rows.size()), (int) Math.min(skip + limit, rows.size()));
+        if (m != null) {
+            m.executeNanos = System.nanoTime() - start;
+            m.rows = rows.size();
+        }
+        return rows;
+    }
+
+    protected List<Result> in(Database db, JSONObject req, long want) throws Exception {
+        List<List<Result>> parts = new ArrayList<>();
+        long total = 0;
+        PreparedQuery prepared = null;
+        int size = chunkSize;
+        for (int i = 0; i < values.size(); i += size) {
+            JSONObject chunk = request(req, new JSONArray(values.subList(i, Math.min(i + size, values.size()))), want);
+            Binder b = Binder.of(chunk);
+            if (prepared == null || !prepared.getShape().equals(b.getShape())) {
+                prepared = CBLiteMango.prepare(db, chunk);
+            }
+            List<Result> rows = new ArrayList<>();
+            ResultSet rs = prepared.execute(b.parameters());
+            for (Result row : rs) {
+                rows.add(row);
+            }
+            parts.add(rows);
+            total += rows.size();
+            if (keys.isEmpty() && total >= want) {
+                // unsorted: any rows will do
+                break;
+            }
+        }
+        if (keys.isEmpty()) {
+            List<Result> out = new ArrayList<>((int) Math.min(total, want));
+            for (List<Result> part : parts) {
+                out.addAll(part);
+            }
+            return out;
+        }
+        return merge(db, parts, want);
+    }
+
+    // k-way merge of the sorted chunks; values are compared in Java, with
+    // strings by UTF-16 code unit
+    protected List<Result> merge(Database db, List<List<Result>> parts, long want) {
+        List<Cursor> cursors = new ArrayList<>();
+        for (List<Result> part : parts) {
+            if (!part.isEmpty()) {
+                cursors.add(new Cursor(db, keys, part.iterator()));
+            }
+        }
+        PriorityQueue<Cursor> queue = new PriorityQueue<>(Math.max(1, cursors.size()), new Comparator<Cursor>() {
+            @Override
+            public int compare(Cursor a, Cursor b) {
+                for (int i = 0; i < keys.size(); i++) {
+                    int c = Values.COLLATION.compare(a.key[i], b.key[i]);
+                    if (c != 0) {
+                        return keys.get(i).desc ? -c : c;
+                    }
+                }
+                return 0;
+            }
+        });
+        queue.addAll(cursors);
+        List<Result> out = new ArrayList<>();
+        while (!queue.isEmpty() && out.size() < want) {
+            Cursor c = queue.poll();
+            out.add(c.row);
+            if (c.next()) {
+                queue.add(c);
+            }
+        }
+        return out;
+    }
+
+    // the current row of a chunk and its sort key, read once per row
+    static class Cursor {
+        final Database db;
+        final List<Key> keys;
+        final Iterator<Result> rows;
+        Result row;
+        Object[] key;
+
+        Cursor(Database db, List<Key> keys, Iterator<Result> rows) {
+            this.db = db;
+            this.keys = keys;
+            this.rows = rows;
+            next();
+        }
+
+        boolean next() {
+            row = rows.hasNext() ? rows.next() : null;
+            if (row == null) {
+                return false;
+            }
+            key = new Object[keys.size()];
+            for (int i = 0; i < key.length; i++) {
+                key[i] = value(db, row, keys.get(i).prop);
+            }
+            return true;
+        }
+    }
+
+    protected List<Result> nin(Database db, JSONObject req, long want) throws Exception {
+        String[] excluded = new String[values.size()];
+        for (int i = 0; i < excluded.length; i++) {
+            excluded[i] = Values.key(values.get(i));
+        }
+        Arrays.sort(excluded);
+
+        List<Result> out = new ArrayList<>();
+        ResultSet rs = CBLiteMango.compile(db, request(req, null, -1), null).execute();
+        for (Result row : rs) {
+            if (out.size() >= want) {
+                break;
+            }
+            if (Arrays.binarySearch(excluded, Values.key(value(db, row, prop))) < 0) {
+                out.add(row);
+            }
+        }
+        return out;
+    }
+
+    // req with the list replaced by chunk, or for $nin by "$exists": true,
+    // which keeps NOT IN's exclusion of null and missing values. Skip is
+    // applied after merging, so each part returns up to want rows.
+    protected JSONObject request(JSONObject req, JSONArray chunk, long want) throws JSONException {
+        JSONObject out = copy(req);
+        out.remove("skip");
+        out.remove("limit");
+        if (want >= 0 && want < Integer.MAX_VALUE) {
+            out.put("limit", want);
+        }
+        JSONObject selector = copy(req.getJSONObject("selector"));
+        JSONObject ops = copy(selector.getJSONObject(prop));
+        if (chunk != null) {
+            ops.put(op, chunk);
+        } else {
+            ops.remove(op);
+            if (!ops.has("$exists")) {
+                ops.put("$exists", true);
+            }
+        }
+        selector.put(prop, ops);
+        out.put("selector", selector);
+        if (!extra.isEmpty()) {
+            JSONArray fields = new JSONArray();
+            JSONArray src = req.getJSONArray("fields");
+            for (int i = 0; i < src.length(); i++) {
+                fields.put(src.get(i));
+            }
+            for (String field : extra) {
+                fields.put(field);
+            }
+            out.put("fields", fields);
+        }
+        return out;
+    }
+
+    protected static JSONObject copy(JSONObject src) throws JSONException {
+        JSONObject out = new JSONObject();
+        Iterator<String> keys = src.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            out.put(key, src.get(key));
+        }
+        return out;
+    }
+
+    // a field of a row: its column, named after the last path component,
+    // or the path inside the document for SelectResult.all() rows
+    protected static Object value(Database db, Result row, String field) {
+        String column = field.substring(field.lastIndexOf('.') + 1);
+        if (row.contains(column)) {
+            return Predicate.plain(row.getValue(column));
+        }
+        Object v = row.getDictionary(db.getName());
+        for (String part : field.split("\\.")) {
+            if (!(v instanceof Dictionary)) {
+                return null;
+            }
+            v = ((Dictionary) v).getValue(part);
+        }
+        return Predicate.plain(v);
+    }
+}
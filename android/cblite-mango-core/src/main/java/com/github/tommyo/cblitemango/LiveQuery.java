@@ -0,0 +1,274 @@
+package com.github.tommyo.cblitemango;
+
+import com.couchbase.lite.DataSource;
+import com.couchbase.lite.Database;
+import com.couchbase.lite.ListenerToken;
+import com.couchbase.lite.Meta;
+import com.couchbase.lite.Query;
+import com.couchbase.lite.QueryBuilder;
+import com.couchbase.lite.QueryChange;
+import com.couchbase.lite.QueryChangeListener;
+import com.couchbase.lite.Result;
+import com.couchbase.lite.ResultSet;
+import com.couchbase.lite.SelectResult;
+import com.couchbase.lite.Where;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// Query.addChangeListener with coalescing: result sets arriving within the
+// window after the first one are merged into a single delivery of the
+// newest, and the listener receives only the rows keyed by _id that were
+// inserted, removed or changed since the last delivery, and whether the
+// others moved. Nothing is delivered when a change leaves the rows as they were.
+class LiveQuery {
+    // hidden column holding each row's _id
+    static final String KEY = "__key";
+
+    public interface Listener {
+        void onChange(Diff diff);
+
+        void onError(Throwable error);
+    }
+
+    public static class Diff {
+        final List<String> keys;
+        final Map<String, Map<String, Object>> rows;
+        final List<String> inserted = new ArrayList<>();
+        final List<String> removed = new ArrayList<>();
+        final List<String> changed = new ArrayList<>();
+        boolean reordered;
+
+        Diff(List<String> keys, Map<String, Map<String, Object>> rows) {
+            this.keys = keys;
+            this.rows = rows;
+        }
+
+        // the _id of every row, in result order
+        public List<String> getKeys() {
+            return keys;
+        }
+
+        public List<String> getInserted() {
+            return inserted;
+        }
+
+        public List<String> getRemoved() {
+            return removed;
+        }
+
+        public List<String> getChanged() {
+            return changed;
+        }
+
+        // a current row, as Result.toMap() without the key column
+        public Map<String, Object> getRow(String key) {
+            return rows.get(key);
+        }
+
+        // whether rows present before and after changed their relative order
+        public boolean isReordered() {
+            return reordered;
+        }
+
+        public boolean isEmpty() {
+            return inserted.isEmpty() && removed.isEmpty() && changed.isEmpty() && !reordered;
+        }
+    }
+
+    private static ScheduledExecutorService scheduler;
+
+    private static synchronized ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "cblite-mango-live");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    private final Query query;
+    private final long window;
+    private final Executor executor;
+    private final Listener listener;
+    private ListenerToken token;
+
+    // the newest results not yet delivered, guarded by this; only these are
+    // read, once per flush, so the ones they replaced cost nothing
+    private ResultSet pending;
+    private Throwable pendingError;
+    private boolean scheduled;
+    private boolean closed;
+
+    // the last delivered rows, only touched by flush() on the scheduler
+    private Map<String, Map<String, Object>> rows = Collections.emptyMap();
+    private List<String> keys = Collections.emptyList();
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private LiveQuery(Query query, long window, Executor executor, Listener listener) {
+        this.query = query;
+        this.window = window;
+        this.executor = executor;
+        this.listener = listener;
+    }
+
+    // listener runs on executor, or on the coalescing thread when null
+    public static LiveQuery open(Database db, JSONObject req, long windowMillis, Executor executor, Listener listener) throws Exception {
+        if (Aggregate.is(req)) {
+            // rows are diffed by document id
+            throw new Exception("Aggregate requests can't be live");
+        }
+        SelectResult[] fields = CBLiteMango.fields(req);
+        SelectResult[] columns = new SelectResult[fields.length + 1];
+        System.arraycopy(fields, 0, columns, 0, fields.length);
+        columns[fields.length] = SelectResult.expression(Meta.id).as(KEY);
+        Where where = QueryBuilder.select(columns)
+                .from(DataSource.database(db))
+                .where(CBLiteMango.where(req));
+        // not cached: the listener belongs to this query alone
+        Query q = CBLiteMango.page(where, CBLiteMango.orderings(req.optJSONArray("sort"), CBLiteMango.textIndex(req)), CBLiteMango.limit(req.opt("limit"), req.opt("skip")));
+
+        final LiveQuery live = new LiveQuery(q, windowMillis, executor, listener);
+        live.token = q.addChangeListener(new QueryChangeListener() {
+            @Override
+            public void changed(QueryChange change) {
+                live.changed(change);
+            }
+        });
+        return live;
+    }
+
+    public Query getQuery() {
+        return query;
+    }
+
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            query.removeChangeListener(token);
+            pending = null;
+            pendingError = null;
+        }
+    }
+
+    protected void changed(QueryChange change) {
+        Throwable error = change.getError();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (error != null) {
+                pendingError = error;
+            } else {
+                pending = change.getResults();
+            }
+            if (!scheduled) {
+                scheduled = true;
+                scheduler().schedule(flush, window, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    protected void flush() {
+        ResultSet results;
+        final Throwable error;
+        synchronized (this) {
+            scheduled = false;
+            if (closed) {
+                return;
+            }
+            results = pending;
+            error = pendingError;
+            pending = null;
+            pendingError = null;
+        }
+        if (error != null) {
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onError(error);
+                }
+            });
+        }
+        if (results == null) {
+            return;
+        }
+        List<String> nextKeys = new ArrayList<>();
+        Map<String, Map<String, Object>> nextRows = new HashMap<>();
+        for (Result r : results) {
+            Map<String, Object> row = new HashMap<>(r.toMap());
+            String key = (String) row.remove(KEY);
+            nextKeys.add(key);
+            nextRows.put(key, row);
+        }
+        final Diff diff = diff(keys, rows, nextKeys, nextRows);
+        keys = nextKeys;
+        rows = nextRows;
+        if (!diff.isEmpty()) {
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onChange(diff);
+                }
+            });
+        }
+    }
+
+    protected void deliver(Runnable r) {
+        if (executor == null) {
+            r.run();
+        } else {
+            executor.execute(r);
+        }
+    }
+
+    protected static Diff diff(List<String> oldKeys, Map<String, Map<String, Object>> oldRows,
+                               List<String> newKeys, Map<String, Map<String, Object>> newRows) {
+        Diff diff = new Diff(newKeys, newRows);
+        for (String key : newKeys) {
+            Map<String, Object> old = oldRows.get(key);
+            if (old == null) {
+                diff.inserted.add(key);
+            } else if (!old.equals(newRows.get(key))) {
+                diff.changed.add(key);
+            }
+        }
+        List<String> kept = new ArrayList<>(oldKeys.size());
+        for (String key : oldKeys) {
+            if (newRows.containsKey(key)) {
+                kept.add(key);
+            } else {
+                diff.removed.add(key);
+            }
+        }
+        int i = 0;
+        for (String key : newKeys) {
+            if (oldRows.containsKey(key) && !key.equals(kept.get(i++))) {
+                diff.reordered = true;
+                break;
+            }
+        }
+        return diff;
+    }
+}
@@ -0,0 +1,154 @@
+package com.github.tommyo.cblitemango;
+
+import com.couchbase.lite.Database;
+import com.couchbase.lite.Document;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// requests whose selector only names documents by _id ({"_id": "a"},
+// {"_id": {"$in": [...]}}, or an $or of those) are answered with
+// Database.getDocument, without compiling or running a query.
+// Rows have the same keys as the query's Result.toMap() would.
+class Lookup {
+    // the ids to fetch, in order, or null when req needs the query engine
+    public static List<String> ids(JSONObject req) throws Exception {
+        if (Aggregate.is(req)) {
+            return null;
+        }
+        JSONObject selector = req.getJSONObject("selector");
+        if (selector.length() != 1 || !(selector.has("_id") || selector.has("$or"))) {
+            return null;
+        }
+        Object sort = req.opt("sort");
+        if (sort != null && direction((JSONArray) sort) == null) {
+            return null;
+        }
+        Selector s = Selector.parse(selector).optimize();
+        if (!(s instanceof Selector.Field) || !"_id".equals(((Selector.Field) s).prop)) {
+            return null;
+        }
+        Selector.Field f = (Selector.Field) s;
+        List<?> values;
+        switch (f.op) {
+            case "$eq":
+                values = Collections.singletonList(f.value);
+                break;
+            case "$in":
+                values = (List<?>) f.value;
+                break;
+            default:
+                return null;
+        }
+        List<String> ids = new ArrayList<>(values.size());
+        for (Object v : values) {
+            if (v instanceof String) {
+                ids.add((String) v);
+            } else if (v instanceof Binder.Param) {
+                return null;
+            }
+            // anything else can't be a document id
+        }
+        return ids;
+    }
+
+    public static List<Map<String, Object>> find(Database db, JSONObject req, List<String> ids) throws Exception {
+        // checked as a query checks them
+        long skip = CBLiteMango.count(req.opt("skip"), 0);
+        long limit = CBLiteMango.count(req.opt("limit"), Long.MAX_VALUE);
+        JSONArray sort = req.optJSONArray("sort");
+        if (sort != null) {
+            ids = new ArrayList<>(ids);
+            Collections.sort(ids);
+            if ("desc".equals(direction(sort))) {
+                Collections.reverse(ids);
+            }
+        }
+
+        List<Document> docs = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            Document doc = db.getDocument(id);
+            if (doc != null) {
+                docs.add(doc);
+            }
+        }
+
+        // missing documents don't count towards skip and limit
+        int start = (int) Math.min(skip, docs.size());
+        int end = (int) Math.min(start + Math.min(limit, docs.size()), docs.size());
+        JSONArray fields = req.optJSONArray("fields");
+        List<Map<String, Object>> rows = new ArrayList<>(end - start);
+        for (Document doc : docs.subList(start, end)) {
+            rows.add(row(db, doc, fields));
+        }
+        return rows;
+    }
+
+    // asc or desc when every sort key is _id, else null
+    protected static String direction(JSONArray sort) throws Exception {
+        String out = "asc";
+        for (int i = 0; i < sort.length(); i++) {
+            Object key = sort.get(i);
+            if (!"_id".equals(Indexes.field(key))) {
+                return null;
+            }
+            if (key instanceof JSONObject) {
+                String direction = ((JSONObject) key).getString("_id");
+                if (!"asc".equals(direction) && !"desc".equals(direction)) {
+                    throw new Exception("Invalid sort direction " + direction + " for _id");
+                }
+                out = direction;
+            }
+        }
+        return out;
+    }
+
+    protected static Map<String, Object> row(Database db, Document doc, JSONArray fields) throws Exception {
+        return row(db.getName(), doc.getId(), doc.getSequence(), doc.toMap(), fields);
+    }
+
+    // SelectResult.all() nests the body under the database name
+    protected static Map<String, Object> row(String name, String id, long sequence, Map<String, Object> body, JSONArray fields) throws Exception {
+        Map<String, Object> row = new HashMap<>();
+        if (fields == null) {
+            row.put(name, body);
+            return row;
+        }
+        for (int i = 0; i < fields.length(); i++) {
+            String field = fields.getString(i);
+            switch (field) {
+                case "_id":
+                    row.put(field, id);
+                    break;
+                case "_rev":
+                    row.put(field, sequence);
+                    break;
+                default:
+                    Object v = path(body, field);
+                    if (v != null) {
+                        // the result column is named after the last path component
+                        row.put(field.substring(field.lastIndexOf('.') + 1), v);
+                    }
+                    break;
+            }
+        }
+        return row;
+    }
+
+    protected static Object path(Map<String, Object> body, String field) {
+        Object v = body;
+        for (String key : field.split("\\.")) {
+            if (!(v instanceof Map)) {
+                return null;
+            }
+            v = ((Map<?, ?>) v).get(key);
+        }
+        return v;
+    }
+}
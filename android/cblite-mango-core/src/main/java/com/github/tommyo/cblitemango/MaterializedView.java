@@ -0,0 +1,244 @@
+package com.github.tommyo.cblitemango;
+
+import com.couchbase.lite.DataSource;
+import com.couchbase.lite.Database;
+import com.couchbase.lite.DatabaseChange;
+import com.couchbase.lite.DatabaseChangeListener;
+import com.couchbase.lite.Document;
+import com.couchbase.lite.ListenerToken;
+import com.couchbase.lite.Meta;
+import com.couchbase.lite.Query;
+import com.couchbase.lite.QueryBuilder;
+import com.couchbase.lite.Result;
+import com.couchbase.lite.SelectResult;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+// the rows of a request, kept current from the database's change
+// notifications. The query runs once; after that only the documents named in
+// a change are fetched and tested with the selector's Predicate, so a change
+// costs O(changed * log n) however large the result is. Rows are kept in sort
+// order with _id as the tie breaker; skip and limit apply when reading.
+class MaterializedView {
+    public interface Listener {
+        // ids of the rows that were added, removed or changed
+        void onChange(MaterializedView view, Set<String> changed);
+
+        // a changed document that matches but can't be made a row; it is
+        // left out of the view
+        void onError(MaterializedView view, Throwable error);
+    }
+
+    static class Row {
+        final String id;
+        final Object[] key;
+        final Map<String, Object> value;
+
+        Row(String id, Object[] key, Map<String, Object> value) {
+            this.id = id;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final Database db;
+    private final JSONObject req;
+    private final Predicate predicate;
+    private final JSONArray fields;
+    private final List<LargeIn.Key> keys;
+    private final int skip;
+    private final int limit;
+
+    private final Map<String, Row> rows = new HashMap<>();
+    private final TreeSet<Row> sorted;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private ListenerToken token;
+
+    private MaterializedView(Database db, JSONObject req) throws Exception {
+        if (Aggregate.is(req)) {
+            throw new Exception("Aggregate requests can't be materialized");
+        }
+        this.db = db;
+        this.req = req;
+        this.predicate = Predicate.compile(req.getJSONObject("selector"));
+        this.fields = req.optJSONArray("fields");
+        this.keys = LargeIn.keys(req.optJSONArray("sort"));
+        this.skip = req.optInt("skip", 0);
+        this.limit = req.optInt("limit", Integer.MAX_VALUE);
+        if (skip < 0 || limit < 0) {
+            throw new Exception("limit and skip must be non-negative integers");
+        }
+        this.sorted = new TreeSet<>(new Comparator<Row>() {
+            @Override
+            public int compare(Row a, Row b) {
+                return MaterializedView.this.compare(a, b);
+            }
+        });
+    }
+
+    // changes are handled on executor, or where Couchbase Lite delivers them when null
+    public static MaterializedView open(Database db, JSONObject req, Executor executor) throws Exception {
+        final MaterializedView view = new MaterializedView(db, req);
+        DatabaseChangeListener listener = new DatabaseChangeListener() {
+            @Override
+            public void changed(DatabaseChange change) {
+                view.update(change.getDocumentIDs());
+            }
+        };
+        // subscribed first so that no change is missed; updates wait for the load
+        synchronized (view) {
+            view.token = (executor == null)
+                    ? db.addChangeListener(listener)
+                    : db.addChangeListener(executor, listener);
+            view.load();
+        }
+        return view;
+    }
+
+    public void addListener(Listener l) {
+        listeners.add(l);
+    }
+
+    public void removeListener(Listener l) {
+        listeners.remove(l);
+    }
+
+    public synchronized void close() {
+        if (token != null) {
+            db.removeChangeListener(token);
+            token = null;
+        }
+        rows.clear();
+        sorted.clear();
+    }
+
+    public JSONObject getRequest() {
+        return req;
+    }
+
+    // matching documents, before skip and limit
+    public synchronized int getCount() {
+        return rows.size();
+    }
+
+    public synchronized boolean contains(String id) {
+        return rows.containsKey(id);
+    }
+
+    // the current page, in the same shape as docs() returns
+    public synchronized List<Map<String, Object>> getRows() {
+        List<Map<String, Object>> out = new ArrayList<>(Math.min(limit, Math.max(0, rows.size() - skip)));
+        int i = 0;
+        for (Row row : sorted) {
+            if (out.size() >= limit) {
+                break;
+            }
+            if (i++ >= skip) {
+                out.add(row.value);
+            }
+        }
+        return out;
+    }
+
+    protected void load() throws Exception {
+        Query q = QueryBuilder
+                .select(SelectResult.expression(Meta.id), SelectResult.expression(Meta.sequence), SelectResult.all())
+                .from(DataSource.database(db))
+                .where(CBLiteMango.where(req));
+        for (Result r : q.execute()) {
+            Row row = row(r.getString(0), r.getLong(1), r.getDictionary(2).toMap());
+            rows.put(row.id, row);
+            sorted.add(row);
+        }
+    }
+
+    protected void update(List<String> ids) {
+        Set<String> changed = new LinkedHashSet<>();
+        List<Exception> errors = new ArrayList<>();
+        synchronized (this) {
+            if (token == null) {
+                // closed
+                return;
+            }
+            for (String id : ids) {
+                Document doc = db.getDocument(id);
+                Row old = rows.remove(id);
+                if (old != null) {
+                    sorted.remove(old);
+                }
+                if (doc == null || !predicate.test(doc)) {
+                    if (old != null) {
+                        changed.add(id);
+                    }
+                    continue;
+                }
+                Row row;
+                try {
+                    row = row(id, doc.getSequence(), doc.toMap());
+                } catch (Exception e) {
+                    errors.add(e);
+                    if (old != null) {
+                        changed.add(id);
+                    }
+                    continue;
+                }
+                rows.put(id, row);
+                sorted.add(row);
+                if (old == null || compare(old, row) != 0 || !old.value.equals(row.value)) {
+                    changed.add(id);
+                }
+            }
+        }
+        if (!changed.isEmpty()) {
+            for (Listener l : listeners) {
+                l.onChange(this, changed);
+            }
+        }
+        for (Exception e : errors) {
+            for (Listener l : listeners) {
+                l.onError(this, e);
+            }
+        }
+    }
+
+    protected Row row(String id, long sequence, Map<String, Object> body) throws Exception {
+        Object[] key = new Object[keys.size()];
+        for (int i = 0; i < key.length; i++) {
+            String prop = keys.get(i).prop;
+            switch (prop) {
+                case "_id":
+                    key[i] = id;
+                    break;
+                case "_rev":
+                    key[i] = sequence;
+                    break;
+                default:
+                    key[i] = Lookup.path(body, prop);
+                    break;
+            }
+        }
+        return new Row(id, key, Lookup.row(db.getName(), id, sequence, body, fields));
+    }
+
+    protected int compare(Row a, Row b) {
+        for (int i = 0; i < keys.size(); i++) {
+            int c = Values.collate(a.key[i], b.key[i]);
+            if (c != 0) {
+                return keys.get(i).desc ? -c : c;
+            }
+        }
+        return a.id.compareTo(b.id);
+    }
+}
@@ -0,0 +1,7 @@
+package com.github.tommyo.cblitemango;
+
+// receives one QueryMetrics per query()/find() call while registered with
+// CBLiteMango.addMetricsListener(). Called on the querying thread.
+interface MetricsListener {
+    void onQuery(QueryMetrics metrics);
+}
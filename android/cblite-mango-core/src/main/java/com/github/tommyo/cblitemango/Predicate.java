@@ -0,0 +1,513 @@
+package com.github.tommyo.cblitemango;
+
+import com.couchbase.lite.Array;
+import com.couchbase.lite.Dictionary;
+import com.couchbase.lite.Document;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// a selector compiled for documents already in memory: Maps, Dictionaries and
+// Documents, with nested Maps and Lists or Dictionaries and Arrays. Matches
+// the compiled query's N1QL semantics, where comparing a null or missing value
+// is unknown rather than false, so that $not doesn't match it either.
+// Paths are split, $in sets sorted and patterns compiled up front; evaluating
+// scalar conditions allocates nothing beyond what the document accessors do.
+// An object or array value compared with an object or array literal, by
+// comparison or $in, is copied and serialized to its Values.key.
+abstract class Predicate {
+    protected static final int FALSE = 0;
+    protected static final int TRUE = 1;
+    protected static final int UNKNOWN = 2;
+
+    // a property the document doesn't have
+    protected static final Object MISSING = new Object();
+
+    public static Predicate compile(JSONObject selector) throws Exception {
+        return Selector.parse(selector).optimize().predicate();
+    }
+
+    public boolean test(Map<String, ?> doc) {
+        return eval(doc) == TRUE;
+    }
+
+    public boolean test(Dictionary doc) {
+        return eval(doc) == TRUE;
+    }
+
+    public boolean test(Document doc) {
+        return eval(doc) == TRUE;
+    }
+
+    protected abstract int eval(Object doc);
+
+    // one operator on one property, as Selector.Field compiles it
+    protected static Predicate field(Path path, String op, Object value) throws Exception {
+        switch (op) {
+            case "$eq":
+            case "$lt":
+            case "$lte":
+            case "$gte":
+                if (value == JSONObject.NULL) {
+                    // x = NULL is never true
+                    return new Constant(UNKNOWN);
+                }
+                return new Compare(path, op, literal(value));
+            case "$ne":
+            case "$gt":
+                if (value == JSONObject.NULL) {
+                    return new Exists(path, true);
+                }
+                return new Compare(path, op, literal(value));
+            case "$in":
+                return new In(path, (List<?>) value);
+            case "$nin":
+                return new Not(new In(path, (List<?>) value));
+            case "$all":
+                return new Every(path, new In(null, (List<?>) value));
+            case "$elemMatch":
+                return new Any(path, new In(null, (List<?>) value));
+            case "$exists":
+                return new Exists(path, (Boolean) value);
+            case "$mod":
+                return new Mod(path, (Double) value);
+            case "$regex":
+                return new Regex(path, Pattern.compile((String) value));
+            case "$size":
+                return new Size(path, (Double) value);
+            default:
+                throw new Exception("Unsupported operator " + op + " on " + path.prop);
+        }
+    }
+
+    protected static Object literal(Object value) throws Exception {
+        if (value instanceof Binder.Param) {
+            throw new Exception("Parameters can't be evaluated in memory");
+        }
+        return value;
+    }
+
+    static class Constant extends Predicate {
+        final int value;
+
+        Constant(int value) {
+            this.value = value;
+        }
+
+        @Override
+        protected int eval(Object doc) {
+            return value;
+        }
+    }
+
+    static class And extends Predicate {
+        final Predicate[] children;
+
+        And(Predicate[] children) {
+            this.children = children;
+        }
+
+        @Override
+        protected int eval(Object doc) {
+            int out = TRUE;
+            for (Predicate child : children) {
+                int v = child.eval(doc);
+                if (v == FALSE) {
+                    return FALSE;
+                }
+                if (v == UNKNOWN) {
+                    out = UNKNOWN;
+                }
+            }
+            return out;
+        }
+    }
+
+    static class Or extends Predicate {
+        final Predicate[] children;
+
+        Or(Predicate[] children) {
+            this.children = children;
+        }
+
+        @Override
+        protected int eval(Object doc) {
+            int out = FALSE;
+            for (Predicate child : children) {
+                int v = child.eval(doc);
+                if (v == TRUE) {
+                    return TRUE;
+                }
+                if (v == UNKNOWN) {
+                    out = UNKNOWN;
+                }
+            }
+            return out;
+        }
+    }
+
+    static class Not extends Predicate {
+        final Predicate child;
+
+        Not(Predicate child) {
+            this.child = child;
+        }
+
+        @Override
+        protected int eval(Object doc) {
+            int v = child.eval(doc);
+            return (v == UNKNOWN) ? UNKNOWN : TRUE - v;
+        }
+    }
+
+    // a.b.c, with _id and _rev read from a Document's metadata. A path whose
+    // root is in vars, a Selector.Match variable, is resolved from the array
+    // element.
+    static class Path {
+        final String prop;
+        final String[] parts;
+
+        Path(String prop, Set<String> vars) {
+            String[] parts = prop.split("\\.");
+            this.prop = prop;
+            this.parts = vars.contains(parts[0]) ? Arrays.copyOfRange(parts, 1, parts.length) : parts;
+        }
+
+        Object resolve(Object doc) {
+            if (doc instanceof Document && parts.length == 1) {
+                switch (parts[0]) {
+                    case "_id":
+                        return ((Document) doc).getId();
+                    case "_rev":
+                        return ((Document) doc).getSequence();
+                }
+            }
+            Object v = doc;
+            for (String part : parts) {
+                if (v instanceof Map) {
+                    Map<?, ?> map = (Map<?, ?>) v;
+                    v = map.get(part);
+                    if (v == null && !map.containsKey(part)) {
+                        return MISSING;
+                    }
+                } else if (v instanceof Dictionary) {
+                    Dictionary dict = (Dictionary) v;
+                    if (!dict.contains(part)) {
+                        return MISSING;
+                    }
+                    v = dict.getValue(part);
+                } else if (v instanceof Document) {
+                    Document d = (Document) v;
+                    if (!d.contains(part)) {
+                        return MISSING;
+                    }
+                    v = d.getValue(part);
+                } else {
+                    return MISSING;
+                }
+            }
+            return v;
+        }
+    }
+
+    abstract static class Field extends Predicate {
+        final Path path;
+
+        Field(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        protected int eval(Object doc) {
+            return test(path.resolve(doc));
+        }
+
+        // v is MISSING for a missing property
+        abstract int test(Object v);
+    }
+
+    protected static boolean isAbsent(Object v) {
+        return v == MISSING || v == null || v == JSONObject.NULL;
+    }
+
+    static class Compare extends Field {
+        final String op;
+        final Object literal;
+        // objects and arrays compare by value, not by collation rank alone
+        final String key;
+
+        Compare(Path path, String op, Object literal) {
+            super(path);
+            this.op = op;
+            this.literal = literal;
+            this.key = Values.isScalar(literal) ? null : Values.key(literal);
+        }
+
+        @Override
+        int test(Object v) {
+            if (isAbsent(v)) {
+                return UNKNOWN;
+            }
+            int c;
+            if (key != null && Values.rank(v) == Values.rank(literal)) {
+                c = Values.key(plain(v)).compareTo(key);
+            } else {
+                c = Values.collate(v, literal);
+            }
+            switch (op) {
+                case "$eq":
+                    return (c == 0) ? TRUE : FALSE;
+                case "$ne":
+                    return (c != 0) ? TRUE : FALSE;
+                case "$lt":
+                    return (c < 0) ? TRUE : FALSE;
+                case "$lte":
+                    return (c <= 0) ? TRUE : FALSE;
+                case "$gt":
+                    return (c > 0) ? TRUE : FALSE;
+                default:
+                    return (c >= 0) ? TRUE : FALSE;
+            }
+        }
+    }
+
+    // Couchbase Lite containers as plain Maps and Lists
+    protected static Object plain(Object v) {
+        if (v instanceof Dictionary) {
+            return ((Dictionary) v).toMap();
+        }
+        if (v instanceof Array) {
+            return ((Array) v).toList();
+        }
+        return v;
+    }
+
+    static class In extends Field {
+        // sorted by collation, searched in log time
+        final Object[] scalars;
+        final Set<String> others = new HashSet<>();
+
+        In(Path path, List<?> values) throws Exception {
+            super(path);
+            List<Object> scalars = new ArrayList<>();
+            for (Object v : values) {
+                literal(v);
+                if (Values.isScalar(v)) {
+                    scalars.add(v);
+                } else if (v != JSONObject.NULL) {
+                    others.add(Values.key(v));
+                }
+            }
+            this.scalars = scalars.toArray();
+            Arrays.sort(this.scalars, Values.COLLATION);
+        }
+
+        @Override
+        int test(Object v) {
+            if (isAbsent(v)) {
+                return UNKNOWN;
+            }
+            if (Values.isScalar(v)) {
+                return (Arrays.binarySearch(scalars, v, Values.COLLATION) >= 0) ? TRUE : FALSE;
+            }
+            return (!others.isEmpty() && others.contains(Values.key(plain(v)))) ? TRUE : FALSE;
+        }
+    }
+
+    // ANY m IN prop SATISFIES m IN (...)
+    static class Any extends Field {
+        final In element;
+
+        Any(Path path, In element) {
+            super(path);
+            this.element = element;
+        }
+
+        @Override
+        int test(Object v) {
+            int n = length(v);
+            if (n < 0) {
+                return UNKNOWN;
+            }
+            for (int i = 0; i < n; i++) {
+                if (element.test(item(v, i)) == TRUE) {
+                    return TRUE;
+                }
+            }
+            return FALSE;
+        }
+    }
+
+    // EVERY m IN prop SATISFIES m IN (...)
+    static class Every extends Field {
+        final In element;
+
+        Every(Path path, In element) {
+            super(path);
+            this.element = element;
+        }
+
+        @Override
+        int test(Object v) {
+            int n = length(v);
+            if (n < 0) {
+                return UNKNOWN;
+            }
+            for (int i = 0; i < n; i++) {
+                if (element.test(item(v, i)) != TRUE) {
+                    return FALSE;
+                }
+            }
+            return TRUE;
+        }
+    }
+
+    // ANY / ANY AND EVERY var IN prop SATISFIES element, with element's paths
+    // relative to the array item, see Selector.Match
+    static class Match extends Field {
+        final boolean every;
+        final Predicate element;
+
+        Match(Path path, boolean every, Predicate element) {
+            super(path);
+            this.every = every;
+            this.element = element;
+        }
+
+        @Override
+        int test(Object v) {
+            int n = length(v);
+            if (n < 0) {
+                return UNKNOWN;
+            }
+            for (int i = 0; i < n; i++) {
+                int r = element.eval(item(v, i));
+                if (every && r != TRUE) {
+                    return FALSE;
+                }
+                if (!every && r == TRUE) {
+                    return TRUE;
+                }
+            }
+            return (every && n > 0) ? TRUE : FALSE;
+        }
+    }
+
+    // -1 for anything but an array
+    protected static int length(Object v) {
+        if (v instanceof List) {
+            return ((List<?>) v).size();
+        }
+        if (v instanceof Array) {
+            return ((Array) v).count();
+        }
+        return -1;
+    }
+
+    protected static Object item(Object array, int i) {
+        return (array instanceof List) ? ((List<?>) array).get(i) : ((Array) array).getValue(i);
+    }
+
+    static class Exists extends Field {
+        final boolean check;
+
+        Exists(Path path, boolean check) {
+            super(path);
+            this.check = check;
+        }
+
+        @Override
+        int test(Object v) {
+            return (isAbsent(v) != check) ? TRUE : FALSE;
+        }
+    }
+
+    // prop % n, which like any number is true when not 0
+    static class Mod extends Field {
+        final double n;
+
+        Mod(Path path, double n) {
+            super(path);
+            this.n = n;
+        }
+
+        @Override
+        int test(Object v) {
+            if (!(v instanceof Number)) {
+                return UNKNOWN;
+            }
+            return (((Number) v).doubleValue() % n != 0) ? TRUE : FALSE;
+        }
+    }
+
+    static class Regex extends Field {
+        // one reusable Matcher per thread
+        final ThreadLocal<Matcher> matcher;
+
+        Regex(Path path, final Pattern pattern) {
+            super(path);
+            this.matcher = new ThreadLocal<Matcher>() {
+                @Override
+                protected Matcher initialValue() {
+                    return pattern.matcher("");
+                }
+            };
+        }
+
+        @Override
+        int test(Object v) {
+            if (!(v instanceof String)) {
+                return UNKNOWN;
+            }
+            return matcher.get().reset((String) v).find() ? TRUE : FALSE;
+        }
+    }
+
+    // lower <= v.toLowerCase() < upper, for strings v
+    static class LowerRange extends Field {
+        final String lower;
+        final String upper;
+
+        LowerRange(Path path, String lower, String upper) {
+            super(path);
+            this.lower = lower;
+            this.upper = upper;
+        }
+
+        @Override
+        int test(Object v) {
+            if (!(v instanceof String)) {
+                return UNKNOWN;
+            }
+            String s = ((String) v).toLowerCase(Locale.ROOT);
+            return (s.compareTo(lower) >= 0 && s.compareTo(upper) < 0) ? TRUE : FALSE;
+        }
+    }
+
+    static class Size extends Field {
+        final double len;
+
+        Size(Path path, double len) {
+            super(path);
+            this.len = len;
+        }
+
+        @Override
+        int test(Object v) {
+            int n = length(v);
+            if (n < 0) {
+                return UNKNOWN;
+            }
+            return (n == len) ? TRUE : FALSE;
+        }
+    }
+}
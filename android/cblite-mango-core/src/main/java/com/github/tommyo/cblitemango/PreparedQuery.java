@@ -0,0 +1,80 @@
+package com.github.tommyo.cblitemango;
+
+import com.couchbase.lite.Parameters;
+import com.couchbase.lite.Query;
+import com.couchbase.lite.ResultSet;
+
+import org.json.JSONObject;
+
+// a query compiled once with its literals as parameters ($p0, $p1, ...),
+// re-executed by binding the literals of any request with the same shape.
+// The query is shared by every PreparedQuery of the shape, so values are
+// bound only while executing, under the query's lock.
+class PreparedQuery {
+    private final Query query;
+    private final String shape;
+    private final int size;
+    // the literals of the request it was prepared from
+    private final Parameters values;
+
+    PreparedQuery(Query query, String shape, int size, Parameters values) {
+        this.query = query;
+        this.shape = shape;
+        this.size = size;
+        this.values = values;
+    }
+
+    // shared with other PreparedQuery of the shape; its parameters are
+    // whatever the last execution bound
+    public Query getQuery() {
+        return query;
+    }
+
+    public String getShape() {
+        return shape;
+    }
+
+    // number of bound literals
+    public int size() {
+        return size;
+    }
+
+    // with the literals of the prepared request
+    public ResultSet execute() throws Exception {
+        return execute(values);
+    }
+
+    // the literals of a request of the same shape; not an execute() overload,
+    // so that a single String value is always bound positionally
+    public ResultSet executeRequest(String req) throws Exception {
+        return executeRequest(new JSONObject(req));
+    }
+
+    public ResultSet executeRequest(JSONObject req) throws Exception {
+        Binder b = Binder.of(req);
+        if (!shape.equals(b.getShape())) {
+            throw new Exception("Request does not match the prepared selector: " + b.getShape());
+        }
+        return execute(b.parameters());
+    }
+
+    // positional values, in the order of getShape()
+    public ResultSet execute(Object... values) throws Exception {
+        if (values.length != size) {
+            throw new Exception("Expected " + size + " values, got " + values.length);
+        }
+        Parameters p = new Parameters();
+        for (int i = 0; i < values.length; i++) {
+            p.setValue(Binder.name(i), values[i]);
+        }
+        return execute(p);
+    }
+
+    public ResultSet execute(Parameters p) throws Exception {
+        // the query may be shared through the cache
+        synchronized (query) {
+            query.setParameters(p);
+            return query.execute();
+        }
+    }
+}
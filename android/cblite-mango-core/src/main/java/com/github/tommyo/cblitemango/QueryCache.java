@@ -0,0 +1,125 @@
+package com.github.tommyo.cblitemango;
+
+import com.couchbase.lite.Database;
+import com.couchbase.lite.Query;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+// bounded LRU of compiled queries, one per database, keyed by request fingerprint
+class QueryCache {
+    private final int capacity;
+
+    private final Map<Database, Entries> databases = new WeakHashMap<>();
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public QueryCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Query cache capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    public synchronized Query get(Database db, String key) {
+        Entries entries = databases.get(db);
+        Query q = (entries == null) ? null : entries.queries.get(key);
+        if (q == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return q;
+    }
+
+    public synchronized void put(Database db, String key, Query q) {
+        entries(db).queries.put(key, q);
+    }
+
+    // lookup by the exact request text, skipping the JSON parse entirely.
+    // Only counts as a hit; a miss falls through to get() which counts it.
+    public synchronized Query getRaw(Database db, String raw) {
+        Entries entries = databases.get(db);
+        if (entries == null) {
+            return null;
+        }
+        String key = entries.aliases.get(raw);
+        Query q = (key == null) ? null : entries.queries.get(key);
+        if (q != null) {
+            hits++;
+        }
+        return q;
+    }
+
+    public synchronized void alias(Database db, String raw, String key) {
+        entries(db).aliases.put(raw, key);
+    }
+
+    public synchronized void invalidate(Database db) {
+        databases.remove(db);
+    }
+
+    public synchronized void clear() {
+        databases.clear();
+    }
+
+    public synchronized int size(Database db) {
+        Entries entries = databases.get(db);
+        return (entries == null) ? 0 : entries.queries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized void resetStats() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    private Entries entries(Database db) {
+        Entries entries = databases.get(db);
+        if (entries == null) {
+            entries = new Entries();
+            databases.put(db, entries);
+        }
+        return entries;
+    }
+
+    private class Entries {
+        final LinkedHashMap<String, Query> queries = new LinkedHashMap<String, Query>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Query> eldest) {
+                if (size() > capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        // raw request text -> fingerprint, bounded the same way
+        final LinkedHashMap<String, String> aliases = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+}
@@ -0,0 +1,104 @@
+package com.github.tommyo.cblitemango;
+
+import com.couchbase.lite.Database;
+import com.couchbase.lite.Query;
+
+import org.json.JSONObject;
+
+// timings of one request, in nanoseconds. Stages that did not run are 0,
+// rows is -1 when the query was only compiled and not executed.
+class QueryMetrics {
+    private final Database db;
+    private final Object request;
+
+    private String shape;
+
+    Query query;
+    boolean cached;
+    boolean resultCached;
+    long parseNanos;
+    long buildNanos;
+    long executeNanos;
+    long iterateNanos;
+    int rows = -1;
+
+    QueryMetrics(Database db, Object request) {
+        this.db = db;
+        this.request = request;
+    }
+
+    public Database getDatabase() {
+        return db;
+    }
+
+    // null when the request was answered by direct lookups, ran in chunks or
+    // was answered from the ResultCache, see Lookup and LargeIn
+    public Query getQuery() {
+        return query;
+    }
+
+    // the request as passed in; null for streamed requests, which are not kept around
+    public JSONObject getRequest() throws Exception {
+        if (request == null || request instanceof JSONObject) {
+            return (JSONObject) request;
+        }
+        return new JSONObject((String) request);
+    }
+
+    // the selector with literals replaced by "?", see Binder. Computed on first use.
+    public synchronized String getShape() {
+        if (shape == null && request != null) {
+            try {
+                shape = Binder.of(getRequest()).getShape();
+            } catch (Exception e) {
+                shape = String.valueOf(request);
+            }
+        }
+        return shape;
+    }
+
+    public boolean isCached() {
+        return cached;
+    }
+
+    // rows from the ResultCache, nothing executed
+    public boolean isResultCached() {
+        return resultCached;
+    }
+
+    public long getParseNanos() {
+        return parseNanos;
+    }
+
+    public long getBuildNanos() {
+        return buildNanos;
+    }
+
+    public long getExecuteNanos() {
+        return executeNanos;
+    }
+
+    public long getIterateNanos() {
+        return iterateNanos;
+    }
+
+    public long getTotalNanos() {
+        return parseNanos + buildNanos + executeNanos + iterateNanos;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    @Override
+    public String toString() {
+        return "QueryMetrics{shape=" + getShape()
+                + ", cached=" + cached
+                + ", resultCached=" + resultCached
+                + ", parse=" + parseNanos
+                + ", build=" + buildNanos
+                + ", execute=" + executeNanos
+                + ", iterate=" + iterateNanos
+                + ", rows=" + rows + "}";
+    }
+}
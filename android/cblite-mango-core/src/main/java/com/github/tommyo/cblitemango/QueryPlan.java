@@ -0,0 +1,225 @@
+package com.github.tommyo.cblitemango;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Query.explain() taken apart: the SQL, SQLite's EXPLAIN QUERY PLAN rows and
+// the JSON query, with what each row means for performance. Explain output
+// looks like
+//   SELECT ... FROM kv_default AS _doc WHERE ...
+//
+//   3|0|0| SEARCH TABLE kv_default AS _doc USING INDEX mango-type (<expr>=?)
+//   9|0|0| USE TEMP B-TREE FOR ORDER BY
+//
+//   {"WHAT":[...],"WHERE":[...]}
+// Newer SQLite versions drop the "TABLE" after SCAN and SEARCH.
+class QueryPlan {
+    private static final Pattern ROW = Pattern.compile("^\\d+\\|\\d+\\|\\d+\\|\\s*(.*)$");
+    private static final Pattern INDEX = Pattern.compile("USING (?:COVERING )?INDEX (\\S+)(?: \\((.*)\\))?");
+
+    public static class Step {
+        final String detail;
+        // null when the step reads no index
+        final String index;
+        // the index columns constrained, one <expr> per column
+        final int columns;
+
+        Step(String detail) {
+            this.detail = detail;
+            Matcher m = INDEX.matcher(detail);
+            if (m.find()) {
+                index = m.group(1);
+                columns = (m.group(2) == null) ? 0 : count(m.group(2), "<expr>");
+            } else {
+                index = null;
+                columns = 0;
+            }
+        }
+
+        public String getDetail() {
+            return detail;
+        }
+
+        public String getIndex() {
+            return index;
+        }
+
+        // every document read; scans of the array functions behind $all and
+        // $elemMatch are per document and don't count
+        public boolean isScan() {
+            return detail.startsWith("SCAN") && detail.contains("kv_");
+        }
+
+        public boolean isTempSort() {
+            return detail.startsWith("USE TEMP B-TREE");
+        }
+    }
+
+    final String sql;
+    final String json;
+    final List<Step> steps = new ArrayList<>();
+    // property -> index, in selector order
+    final Map<String, String> predicates = new LinkedHashMap<>();
+
+    QueryPlan(String explain, Selector selector) {
+        String sql = null;
+        String json = null;
+        for (String line : explain.split("\n")) {
+            line = line.trim();
+            Matcher m = ROW.matcher(line);
+            if (m.matches()) {
+                steps.add(new Step(m.group(1)));
+            } else if (line.startsWith("{")) {
+                json = line;
+            } else if (sql == null && !line.isEmpty()) {
+                sql = line;
+            }
+        }
+        this.sql = sql;
+        this.json = json;
+
+        Set<String> props = new LinkedHashSet<>();
+        props(selector, props);
+        for (String prop : props) {
+            predicates.put(prop, index(prop));
+        }
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    // the query as Couchbase Lite's JSON query language
+    public String getJson() {
+        return json;
+    }
+
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    // whether any step reads every document
+    public boolean isScan() {
+        for (Step step : steps) {
+            if (step.isScan()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // whether rows are sorted, grouped or deduplicated in a temporary B-tree
+    // rather than read in index order
+    public boolean isTempSort() {
+        for (Step step : steps) {
+            if (step.isTempSort()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public List<String> getIndexes() {
+        List<String> out = new ArrayList<>();
+        for (Step step : steps) {
+            if (step.index != null && !out.contains(step.index)) {
+                out.add(step.index);
+            }
+        }
+        return out;
+    }
+
+    // each selector property and the index that narrows it, or null when it's
+    // evaluated on every row read. Known for indexes named by createIndex
+    // ("mango-<field>-<field>...", with lower(<field>) for {"$lower": field}),
+    // whose constrained leading fields are read from the plan; other indexes
+    // and _id lookups aren't attributed.
+    public Map<String, String> getPredicates() {
+        return predicates;
+    }
+
+    protected String index(String prop) {
+        if ("_id".equals(prop)) {
+            return null;
+        }
+        for (Step step : steps) {
+            if (step.index == null || !step.index.startsWith("mango-")) {
+                continue;
+            }
+            String[] fields = step.index.substring("mango-".length()).split("-");
+            for (int i = 0; i < Math.min(step.columns, fields.length); i++) {
+                if (fields[i].equals(prop) || prop.equals(Indexes.lowered(fields[i]))) {
+                    return step.index;
+                }
+            }
+        }
+        return null;
+    }
+
+    protected static void props(Selector s, Set<String> out) {
+        if (s instanceof Selector.And) {
+            for (Selector child : ((Selector.And) s).children) {
+                props(child, out);
+            }
+        } else if (s instanceof Selector.Or) {
+            for (Selector child : ((Selector.Or) s).children) {
+                props(child, out);
+            }
+        } else if (s instanceof Selector.Not) {
+            props(((Selector.Not) s).child, out);
+        } else if (s instanceof Selector.Match) {
+            // the element's own conditions read no index
+            out.add(((Selector.Match) s).prop);
+        } else if (s instanceof Selector.LowerPrefix) {
+            out.add(((Selector.LowerPrefix) s).prop);
+        } else if (s instanceof Selector.Range) {
+            out.add(((Selector.Range) s).lower.prop);
+        } else if (s instanceof Selector.Field) {
+            out.add(((Selector.Field) s).prop);
+        }
+    }
+
+    protected static int count(String s, String sub) {
+        int n = 0;
+        for (int i = s.indexOf(sub); i >= 0; i = s.indexOf(sub, i + sub.length())) {
+            n++;
+        }
+        return n;
+    }
+
+    public JSONObject toJSON() throws Exception {
+        JSONArray steps = new JSONArray();
+        for (Step step : this.steps) {
+            steps.put(step.detail);
+        }
+        JSONObject predicates = new JSONObject();
+        for (Map.Entry<String, String> e : this.predicates.entrySet()) {
+            predicates.put(e.getKey(), (e.getValue() == null) ? JSONObject.NULL : e.getValue());
+        }
+        return new JSONObject()
+                .put("scan", isScan())
+                .put("temp_sort", isTempSort())
+                .put("indexes", new JSONArray(getIndexes()))
+                .put("predicates", predicates)
+                .put("steps", steps)
+                .put("sql", sql);
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return toJSON().toString();
+        } catch (Exception e) {
+            return String.valueOf(sql);
+        }
+    }
+}
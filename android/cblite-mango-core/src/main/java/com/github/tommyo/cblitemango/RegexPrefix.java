@@ -0,0 +1,113 @@
+package com.github.tommyo.cblitemango;
+
+import java.util.Locale;
+
+// the literal prefix of an anchored $regex, which a range on the property can
+// match with an index seek: "^pika" is "pika" <= prop < "pika" + U+FFFF. The
+// pattern stays as a residual filter unless the prefix alone decides the
+// match. "(?i)^pika" is the same range on lower(prop), see
+// Selector.LowerPrefix, for ASCII prefixes only; the pattern always stays, as
+// lower() also folds non-ASCII letters that Java's (?i) doesn't. Strings whose
+// next character after the prefix is U+FFFF, or outside the BMP, fall outside
+// the range.
+class RegexPrefix {
+    // the end of the range
+    static final String MAX = "\uFFFF";
+
+    private static final String META = ".^$|?*+()[]{}\\";
+
+    final String prefix;
+    final boolean ignoreCase;
+    // whether the pattern matches exactly the strings in the range
+    final boolean exact;
+
+    private RegexPrefix(String prefix, boolean ignoreCase, boolean exact) {
+        this.prefix = prefix;
+        this.ignoreCase = ignoreCase;
+        this.exact = exact;
+    }
+
+    // null when the pattern has no anchored literal prefix
+    public static RegexPrefix of(String pattern) {
+        int n = pattern.length();
+        int i = 0;
+        boolean ignoreCase = false;
+        if (pattern.startsWith("(?i)")) {
+            ignoreCase = true;
+            i = 4;
+        }
+        if (pattern.startsWith("^", i)) {
+            i++;
+        } else if (pattern.startsWith("\\A", i)) {
+            i += 2;
+        } else {
+            return null;
+        }
+        if (!ignoreCase && pattern.startsWith("(?i)", i)) {
+            ignoreCase = true;
+            i += 4;
+        }
+
+        StringBuilder prefix = new StringBuilder();
+        while (i < n) {
+            int start = i;
+            char c = pattern.charAt(i);
+            if (c == '\\') {
+                if (i + 1 >= n || META.indexOf(pattern.charAt(i + 1)) < 0) {
+                    // \d, \w, \b, \Q... aren't literals
+                    break;
+                }
+                c = pattern.charAt(i + 1);
+                i += 2;
+            } else if (META.indexOf(c) >= 0) {
+                break;
+            } else {
+                i++;
+            }
+            if (i < n && "?*+{".indexOf(pattern.charAt(i)) >= 0) {
+                // quantified: the character may be missing or repeated
+                i = start;
+                break;
+            }
+            prefix.append(c);
+        }
+        String rest = pattern.substring(i);
+        if (prefix.length() == 0 || alternates(rest)) {
+            return null;
+        }
+        String p = prefix.toString();
+        if (ignoreCase) {
+            for (int j = 0; j < p.length(); j++) {
+                if (p.charAt(j) > 0x7f) {
+                    return null;
+                }
+            }
+            p = p.toLowerCase(Locale.ROOT);
+        }
+        return new RegexPrefix(p, ignoreCase, !ignoreCase && (rest.isEmpty() || ".*".equals(rest)));
+    }
+
+    // whether the pattern has a top-level |, which would make the anchor
+    // apply to the first alternative only
+    protected static boolean alternates(String rest) {
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = 0; i < rest.length(); i++) {
+            char c = rest.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                inClass = c != ']';
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,308 @@
+package com.github.tommyo.cblitemango;
+
+import com.couchbase.lite.Database;
+import com.couchbase.lite.DatabaseChange;
+import com.couchbase.lite.DatabaseChangeListener;
+import com.couchbase.lite.Document;
+import com.couchbase.lite.ListenerToken;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+// rows of docs() requests, kept until a change could alter them. Each entry
+// remembers the _id of its rows and the selector's Predicate; a changed
+// document drops it when it was one of the rows or matches now. Entries whose
+// rows can't be told apart (LargeIn and aggregate requests), or that skip
+// rows a change could shift, are dropped by any change.
+// Bounded by the estimated size of the rows, least recently used first.
+// Databases are held weakly, like QueryCache holds them: the entries of one
+// that was collected age out like any other.
+class ResultCache {
+    private final long maxBytes;
+
+    // least recently used first
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Database, Watch> watches = new WeakHashMap<>();
+    private long bytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    public ResultCache(long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("Result cache size must be positive");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    static class Key {
+        final WeakReference<Database> db;
+        final String key;
+        final int hash;
+
+        Key(Database db, String key) {
+            this.db = new WeakReference<>(db);
+            this.key = key;
+            this.hash = System.identityHashCode(db) * 31 + key.hashCode();
+        }
+
+        boolean isOf(Database db) {
+            return this.db.get() == db;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).db.get() == db.get() && ((Key) o).key.equals(key);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    static class Entry {
+        final List<Map<String, Object>> rows;
+        // null when any change may affect the rows
+        final Set<String> ids;
+        // null when no document outside ids can match
+        final Predicate predicate;
+        final long bytes;
+
+        Entry(List<Map<String, Object>> rows, Set<String> ids, Predicate predicate, long bytes) {
+            this.rows = rows;
+            this.ids = ids;
+            this.predicate = predicate;
+            this.bytes = bytes;
+        }
+
+        boolean affectedBy(String id, Document doc) {
+            return ids == null || ids.contains(id) || (predicate != null && doc != null && predicate.test(doc));
+        }
+    }
+
+    // the change listener of one database and a count of the changes it has seen
+    static class Watch {
+        ListenerToken token;
+        long generation;
+    }
+
+    public synchronized List<Map<String, Object>> get(Database db, String key) {
+        Entry e = entries.get(new Key(db, key));
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.rows;
+    }
+
+    // to be read before executing the request and passed to put(), which
+    // ignores rows read before a change. Subscribes to db's changes.
+    public synchronized long generation(Database db) {
+        Watch w = watches.get(db);
+        if (w == null) {
+            w = new Watch();
+            // without a reference to db, which the watch would keep alive
+            w.token = db.addChangeListener(new DatabaseChangeListener() {
+                @Override
+                public void changed(DatabaseChange change) {
+                    ResultCache.this.changed(change.getDatabase(), change.getDocumentIDs());
+                }
+            });
+            watches.put(db, w);
+        }
+        return w.generation;
+    }
+
+    // rows is returned shared with later hits, read-only down to nested values
+    @SuppressWarnings("unchecked")
+    public List<Map<String, Object>> put(Database db, String key, long generation,
+                                         List<Map<String, Object>> rows, Set<String> ids, Predicate predicate) {
+        rows = (List<Map<String, Object>>) readOnly(rows);
+        long size = size(key) + size(rows);
+        synchronized (this) {
+            Watch w = watches.get(db);
+            if (w == null || w.generation != generation || size > maxBytes) {
+                return rows;
+            }
+            Entry old = entries.put(new Key(db, key), new Entry(rows, ids, predicate, size));
+            if (old != null) {
+                bytes -= old.bytes;
+            }
+            bytes += size;
+            Iterator<Entry> it = entries.values().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                bytes -= it.next().bytes;
+                it.remove();
+                evictions++;
+            }
+        }
+        return rows;
+    }
+
+    protected static Object readOnly(Object v) {
+        if (v instanceof Map) {
+            Map<String, Object> out = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) v).entrySet()) {
+                out.put((String) e.getKey(), readOnly(e.getValue()));
+            }
+            return Collections.unmodifiableMap(out);
+        }
+        if (v instanceof List) {
+            List<Object> out = new ArrayList<>(((List<?>) v).size());
+            for (Object item : (List<?>) v) {
+                out.add(readOnly(item));
+            }
+            return Collections.unmodifiableList(out);
+        }
+        return v;
+    }
+
+    protected void changed(Database db, List<String> ids) {
+        List<Key> keys = new ArrayList<>();
+        List<Entry> candidates = new ArrayList<>();
+        synchronized (this) {
+            Watch w = watches.get(db);
+            if (w == null) {
+                return;
+            }
+            w.generation++;
+            for (Map.Entry<Key, Entry> e : entries.entrySet()) {
+                if (e.getKey().isOf(db)) {
+                    keys.add(e.getKey());
+                    candidates.add(e.getValue());
+                }
+            }
+        }
+        // each document is read at most once, outside the lock
+        Map<String, Document> docs = new HashMap<>();
+        List<Integer> stale = new ArrayList<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            Entry e = candidates.get(i);
+            for (String id : ids) {
+                Document doc = null;
+                if (e.ids != null && e.predicate != null && !e.ids.contains(id)) {
+                    doc = docs.get(id);
+                    if (doc == null && !docs.containsKey(id)) {
+                        doc = db.getDocument(id);
+                        docs.put(id, doc);
+                    }
+                }
+                if (e.affectedBy(id, doc)) {
+                    stale.add(i);
+                    break;
+                }
+            }
+        }
+        synchronized (this) {
+            for (int i : stale) {
+                // unless replaced since
+                if (entries.get(keys.get(i)) == candidates.get(i)) {
+                    Entry e = entries.remove(keys.get(i));
+                    bytes -= e.bytes;
+                    invalidations++;
+                }
+            }
+        }
+    }
+
+    // drops every entry of db and stops listening to it
+    public synchronized void invalidate(Database db) {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Entry> e = it.next();
+            if (e.getKey().isOf(db)) {
+                bytes -= e.getValue().bytes;
+                it.remove();
+            }
+        }
+        Watch w = watches.remove(db);
+        if (w != null) {
+            db.removeChangeListener(w.token);
+        }
+    }
+
+    public synchronized void clear() {
+        for (Database db : new ArrayList<>(watches.keySet())) {
+            invalidate(db);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    // hits over lookups, 0 before the first
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return (total == 0) ? 0 : (double) hits / total;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    // entries dropped by a change
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    public synchronized void resetStats() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+        invalidations = 0;
+    }
+
+    // a rough estimate of the heap a value holds, from its UTF-16 chars and
+    // per-object overheads
+    protected static long size(Object v) {
+        if (v instanceof String) {
+            return 40 + 2L * ((String) v).length();
+        }
+        if (v instanceof Map) {
+            long n = 48;
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) v).entrySet()) {
+                n += 32 + size(e.getKey()) + size(e.getValue());
+            }
+            return n;
+        }
+        if (v instanceof Collection) {
+            long n = 24;
+            for (Object item : (Collection<?>) v) {
+                n += 8 + size(item);
+            }
+            return n;
+        }
+        // numbers, booleans, blobs by reference
+        return 16;
+    }
+}
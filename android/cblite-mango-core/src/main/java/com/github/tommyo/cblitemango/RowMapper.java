@@ -0,0 +1,295 @@
+package com.github.tommyo.cblitemango;
+
+import com.couchbase.lite.Array;
+import com.couchbase.lite.Dictionary;
+import com.couchbase.lite.Result;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// decodes rows straight into instances of one class, without toMap(): each
+// column is read by index into the field named after it (or by @Column).
+// Fields are found by reflection once per class; which field each column
+// goes to is worked out once per projection, from the request's fields, or
+// its group_by fields and aggregates, in the order select() puts them.
+// Columns without a field are skipped. A request without fields selects
+// whole documents, whose properties are read by name instead.
+class RowMapper<T> {
+    private static final ConcurrentHashMap<Class<?>, RowMapper<?>> mappers = new ConcurrentHashMap<>();
+
+    // how a value is stored into a field
+    private static final int OBJECT = 0;
+    private static final int INT = 1;
+    private static final int LONG = 2;
+    private static final int DOUBLE = 3;
+    private static final int FLOAT = 4;
+    private static final int SHORT = 5;
+    private static final int BYTE = 6;
+    private static final int BOOLEAN = 7;
+    private static final int INTEGER_BOXED = 8;
+    private static final int LONG_BOXED = 9;
+    private static final int DOUBLE_BOXED = 10;
+    private static final int FLOAT_BOXED = 11;
+    private static final int BOOLEAN_BOXED = 12;
+    private static final int STRING = 13;
+    private static final int LIST = 14;
+    private static final int MAP = 15;
+
+    static class Setter {
+        final Field field;
+        final int kind;
+
+        Setter(Field field, int kind) {
+            this.field = field;
+            this.kind = kind;
+        }
+    }
+
+    // the columns of a projection; setters is null when the only column is
+    // the document
+    static class Binding {
+        final Setter[] setters;
+
+        Binding(Setter[] setters) {
+            this.setters = setters;
+        }
+    }
+
+    // SelectResult.all(): one column, the document
+    private static final Binding DOCUMENT = new Binding(null);
+
+    private final Class<T> type;
+    private final Constructor<T> constructor;
+    // column name -> setter
+    private final Map<String, Setter> setters = new HashMap<>();
+    // column names -> binding
+    private final ConcurrentHashMap<List<String>, Binding> bindings = new ConcurrentHashMap<>();
+
+    private RowMapper(Class<T> type) throws Exception {
+        this.type = type;
+        try {
+            constructor = type.getDeclaredConstructor();
+        } catch (NoSuchMethodException e) {
+            throw new Exception(type.getName() + " needs a no-argument constructor");
+        }
+        constructor.setAccessible(true);
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+                int mod = f.getModifiers();
+                if (Modifier.isStatic(mod) || Modifier.isTransient(mod) || Modifier.isFinal(mod) || f.isSynthetic()) {
+                    continue;
+                }
+                Column column = f.getAnnotation(Column.class);
+                String name = (column == null) ? f.getName() : column.value();
+                if (setters.containsKey(name)) {
+                    // hidden by a subclass field
+                    continue;
+                }
+                f.setAccessible(true);
+                setters.put(name, new Setter(f, kind(f)));
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> RowMapper<T> of(Class<T> type) throws Exception {
+        RowMapper<?> m = mappers.get(type);
+        if (m == null) {
+            m = new RowMapper<>(type);
+            RowMapper<?> raced = mappers.putIfAbsent(type, m);
+            if (raced != null) {
+                m = raced;
+            }
+        }
+        return (RowMapper<T>) m;
+    }
+
+    protected static int kind(Field f) throws Exception {
+        Class<?> t = f.getType();
+        if (t == int.class) {
+            return INT;
+        } else if (t == long.class) {
+            return LONG;
+        } else if (t == double.class) {
+            return DOUBLE;
+        } else if (t == float.class) {
+            return FLOAT;
+        } else if (t == short.class) {
+            return SHORT;
+        } else if (t == byte.class) {
+            return BYTE;
+        } else if (t == boolean.class) {
+            return BOOLEAN;
+        } else if (t == Integer.class) {
+            return INTEGER_BOXED;
+        } else if (t == Long.class) {
+            return LONG_BOXED;
+        } else if (t == Double.class) {
+            return DOUBLE_BOXED;
+        } else if (t == Float.class) {
+            return FLOAT_BOXED;
+        } else if (t == Boolean.class) {
+            return BOOLEAN_BOXED;
+        } else if (t == String.class) {
+            return STRING;
+        } else if (t == Object.class || t == Number.class) {
+            return OBJECT;
+        } else if (t.isAssignableFrom(List.class)) {
+            // List, Collection or Iterable
+            return LIST;
+        } else if (t == Map.class) {
+            return MAP;
+        }
+        throw new Exception("Unsupported type " + t.getName() + " for field " + f.getName());
+    }
+
+    // the column names of req's rows, in index order, or null when each row
+    // is the whole document. A property path's column is named after its
+    // last part.
+    public static List<String> columns(JSONObject req) throws Exception {
+        List<String> out = new ArrayList<>();
+        JSONArray fields = req.optJSONArray("fields");
+        if (Aggregate.is(req)) {
+            fields = req.optJSONArray("group_by");
+        } else if (fields == null) {
+            return null;
+        }
+        for (int i = 0; fields != null && i < fields.length(); i++) {
+            String prop = fields.getString(i);
+            out.add(prop.substring(prop.lastIndexOf('.') + 1));
+        }
+        JSONObject aggregate = Aggregate.is(req) ? req.optJSONObject("aggregate") : null;
+        // in the order Aggregate selects them
+        Iterator<String> it = (aggregate == null) ? null : aggregate.keys();
+        while (it != null && it.hasNext()) {
+            out.add(it.next());
+        }
+        return out;
+    }
+
+    // columns as columns() returns them
+    public List<T> map(List<Result> rows, List<String> columns) throws Exception {
+        if (rows.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Binding b = (columns == null) ? DOCUMENT : binding(columns);
+        List<T> out = new ArrayList<>(rows.size());
+        for (Result row : rows) {
+            T obj = constructor.newInstance();
+            if (b.setters == null) {
+                document(obj, row.getDictionary(0));
+            } else {
+                for (int i = 0; i < b.setters.length; i++) {
+                    if (b.setters[i] != null) {
+                        set(obj, b.setters[i], row.getValue(i));
+                    }
+                }
+            }
+            out.add(obj);
+        }
+        return out;
+    }
+
+    protected Binding binding(List<String> columns) {
+        Binding b = bindings.get(columns);
+        if (b != null) {
+            return b;
+        }
+        Setter[] out = new Setter[columns.size()];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = setters.get(columns.get(i));
+        }
+        b = new Binding(out);
+        bindings.putIfAbsent(columns, b);
+        return b;
+    }
+
+    protected void document(T obj, Dictionary doc) throws Exception {
+        if (doc == null) {
+            return;
+        }
+        for (Map.Entry<String, Setter> e : setters.entrySet()) {
+            if (doc.contains(e.getKey())) {
+                set(obj, e.getValue(), doc.getValue(e.getKey()));
+            }
+        }
+    }
+
+    // null and missing values leave the field as the constructor set it
+    protected void set(T obj, Setter s, Object v) throws Exception {
+        if (v == null) {
+            return;
+        }
+        Field f = s.field;
+        try {
+            switch (s.kind) {
+                case INT:
+                    f.setInt(obj, ((Number) v).intValue());
+                    break;
+                case LONG:
+                    f.setLong(obj, ((Number) v).longValue());
+                    break;
+                case DOUBLE:
+                    f.setDouble(obj, ((Number) v).doubleValue());
+                    break;
+                case FLOAT:
+                    f.setFloat(obj, ((Number) v).floatValue());
+                    break;
+                case SHORT:
+                    f.setShort(obj, ((Number) v).shortValue());
+                    break;
+                case BYTE:
+                    f.setByte(obj, ((Number) v).byteValue());
+                    break;
+                case BOOLEAN:
+                    f.setBoolean(obj, bool(v));
+                    break;
+                case INTEGER_BOXED:
+                    f.set(obj, ((Number) v).intValue());
+                    break;
+                case LONG_BOXED:
+                    f.set(obj, ((Number) v).longValue());
+                    break;
+                case DOUBLE_BOXED:
+                    f.set(obj, ((Number) v).doubleValue());
+                    break;
+                case FLOAT_BOXED:
+                    f.set(obj, ((Number) v).floatValue());
+                    break;
+                case BOOLEAN_BOXED:
+                    f.set(obj, bool(v));
+                    break;
+                case STRING:
+                    f.set(obj, (String) v);
+                    break;
+                case LIST:
+                    f.set(obj, ((Array) v).toList());
+                    break;
+                case MAP:
+                    f.set(obj, ((Dictionary) v).toMap());
+                    break;
+                default:
+                    f.set(obj, Predicate.plain(v));
+                    break;
+            }
+        } catch (ClassCastException e) {
+            throw new Exception("Can't read " + v.getClass().getSimpleName() + " into " + type.getSimpleName() + "." + f.getName());
+        }
+    }
+
+    // like Result.getBoolean: numbers are true when not 0
+    protected static boolean bool(Object v) {
+        return (v instanceof Number) ? ((Number) v).doubleValue() != 0 : (Boolean) v;
+    }
+}
@@ -0,0 +1,125 @@
+package com.github.tommyo.cblitemango;
+
+import com.couchbase.lite.Query;
+import com.couchbase.lite.Result;
+
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// rows of a query pushed to a Subscriber only as fast as it asks for them.
+// The query executes on the first request(); rows are then read from the
+// ResultSet on the executor while there is demand, and no thread waits while
+// there is none. cancel() stops the iteration before the next row.
+class RowStream {
+    public interface Subscriber {
+        void onNext(Result row);
+
+        void onError(Throwable error);
+
+        // after the last row, also when nothing was requested since
+        void onComplete();
+    }
+
+    private final Query query;
+    private final Executor executor;
+    private final Subscriber subscriber;
+
+    private final AtomicLong demand = new AtomicLong();
+    // drain passes requested; one runs at a time
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile boolean cancelled;
+    private boolean done;
+    private Iterator<Result> rows;
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    RowStream(Query query, Executor executor, Subscriber subscriber) {
+        this.query = query;
+        this.executor = executor;
+        this.subscriber = subscriber;
+    }
+
+    // n more rows; demand adds up and saturates at Long.MAX_VALUE
+    public void request(long n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("Demand must be positive");
+        }
+        long current;
+        long next;
+        do {
+            current = demand.get();
+            next = (current + n < 0) ? Long.MAX_VALUE : current + n;
+        } while (!demand.compareAndSet(current, next));
+        schedule();
+    }
+
+    public void cancel() {
+        cancelled = true;
+        // lets the drain drop the ResultSet
+        schedule();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    // a rejected drain ends the stream with the RejectedExecutionException;
+    // no drain is running then, so the stream's state is this thread's
+    protected void schedule() {
+        if (pending.getAndIncrement() != 0) {
+            return;
+        }
+        try {
+            executor.execute(drain);
+        } catch (RejectedExecutionException e) {
+            boolean failed = !done && !cancelled;
+            done = true;
+            rows = null;
+            pending.set(0);
+            if (failed) {
+                subscriber.onError(e);
+            }
+        }
+    }
+
+    protected void drain() {
+        int missed = 1;
+        do {
+            if (cancelled) {
+                rows = null;
+            } else if (!done) {
+                try {
+                    emit();
+                } catch (Exception e) {
+                    done = true;
+                    rows = null;
+                    subscriber.onError(e);
+                }
+            }
+            missed = pending.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void emit() throws Exception {
+        if (rows == null) {
+            rows = query.execute().iterator();
+        }
+        while (!cancelled && demand.get() > 0 && rows.hasNext()) {
+            subscriber.onNext(rows.next());
+            demand.decrementAndGet();
+        }
+        if (!cancelled && !rows.hasNext()) {
+            done = true;
+            rows = null;
+            subscriber.onComplete();
+        }
+    }
+}
@@ -0,0 +1,1097 @@
+package com.github.tommyo.cblitemango;
+
+import com.couchbase.lite.Expression;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// a parsed Mango selector, between the request JSON and the Couchbase Lite
+// Expression tree. optimize() simplifies it, compile() emits the Expression
+// through the operator helpers in CBLiteMango.
+abstract class Selector {
+    public static final Selector TRUE = new Constant(true);
+    public static final Selector FALSE = new Constant(false);
+
+    public Expression compile() throws Exception {
+        return compile(Collections.<String>emptySet());
+    }
+
+    // vars: the variables of the enclosing $elemMatch/$allMatch elements,
+    // the roots of paths that are on an element rather than the document
+    protected abstract Expression compile(Set<String> vars) throws Exception;
+
+    // the same condition, for documents in memory
+    public Predicate predicate() throws Exception {
+        return predicate(Collections.<String>emptySet());
+    }
+
+    protected abstract Predicate predicate(Set<String> vars) throws Exception;
+
+    public Selector optimize() {
+        return optimize(false);
+    }
+
+    // negated under an odd number of $not/$nor, where a rewrite must also
+    // keep which documents are unknown rather than false
+    protected Selector optimize(boolean negated) {
+        return this;
+    }
+
+    // canonical form, used to find duplicate predicates
+    @Override
+    public abstract String toString();
+
+    // where the grammar reads a selector from, in document order: a parsed
+    // JSONObject (Tree) or the token stream of a request (JsonPullParser)
+    interface Source {
+        // whether the next value is an object, or an array
+        boolean isObject() throws Exception;
+
+        boolean isArray() throws Exception;
+
+        void beginObject() throws Exception;
+
+        // whether the current object or array has another member
+        boolean hasNext() throws Exception;
+
+        String nextName() throws Exception;
+
+        void endObject() throws Exception;
+
+        void beginArray() throws Exception;
+
+        void endArray() throws Exception;
+
+        // a literal: a scalar, a List or a Map, with null as JSONObject.NULL
+        Object nextValue() throws Exception;
+    }
+
+    // {field: ..., $and: [...], ...}, children ANDed in key order
+    public static Selector parse(JSONObject src) throws Exception {
+        return parse(new Tree(src));
+    }
+
+    public static Selector parse(Source src) throws Exception {
+        List<Selector> children = new ArrayList<>();
+        src.beginObject();
+        while (src.hasNext()) {
+            children.add(parse(src.nextName(), src));
+        }
+        src.endObject();
+        if (children.isEmpty()) {
+            // {} matches every document
+            return TRUE;
+        }
+        return And.of(children);
+    }
+
+    protected static Selector parse(String key, Source src) throws Exception {
+        switch (key) {
+            case "$and":
+                return And.of(list(src));
+            case "$or":
+                return Or.of(list(src));
+            case "$nor":
+                return new Not(Or.of(list(src)));
+            case "$not":
+                return new Not(parse(src));
+            case "$text":
+                return Text.of(src.nextValue());
+            default:
+                // key is a field name.
+                return field(key, src);
+        }
+    }
+
+    protected static List<Selector> list(JSONArray src) throws Exception {
+        return list(new Tree(src));
+    }
+
+    protected static List<Selector> list(Source src) throws Exception {
+        List<Selector> out = new ArrayList<>();
+        src.beginArray();
+        while (src.hasNext()) {
+            out.add(parse(src));
+        }
+        src.endArray();
+        if (out.isEmpty()) {
+            throw new Exception("Empty selector list");
+        }
+        return out;
+    }
+
+    // the conditions on one field, ANDed. An object without operators is a
+    // sub-selector on nested fields: {"a": {"b": 1}} is {"a.b": 1}
+    protected static Selector field(String prop, Source src) throws Exception {
+        if (!src.isObject()) {
+            // implicit $eq
+            return new Field(prop, "$eq", src.nextValue());
+        }
+        List<Selector> all = new ArrayList<>();
+        src.beginObject();
+        while (src.hasNext()) {
+            String key = src.nextName();
+            all.add(key.startsWith("$") ? operator(prop, key, src) : field(prop + "." + key, src));
+        }
+        src.endObject();
+        if (all.isEmpty()) {
+            return new Field(prop, "$eq", Collections.emptyMap());
+        }
+        return And.of(all);
+    }
+
+    protected static Selector operator(String prop, String op, Source src) throws Exception {
+        switch (op) {
+            // simple types
+            case "$eq":
+            case "$lt":
+            case "$lte":
+            case "$ne":
+            case "$gte":
+            case "$gt":
+                return new Field(prop, op, src.nextValue());
+            // array types
+            case "$elemMatch":
+                if (!src.isArray()) {
+                    return Match.of(prop, op, src);
+                }
+                // [a, b]: any element in the list, as {"$in": [a, b]}
+                return new Field(prop, op, src.nextValue());
+            case "$allMatch":
+                return Match.of(prop, op, src);
+            case "$in":
+            case "$nin":
+            case "$all":
+                if (!src.isArray()) {
+                    throw new Exception(op + " on " + prop + " needs an array");
+                }
+                return new Field(prop, op, src.nextValue());
+            case "$exists":
+                return new Field(prop, op, (Boolean) src.nextValue());
+            case "$mod":
+            case "$size":
+                return new Field(prop, op, ((Number) src.nextValue()).doubleValue());
+            case "$regex":
+                return new Field(prop, op, (String) src.nextValue());
+            case "$type":
+                throw new Exception("$type is not supported");
+            default:
+                throw new Exception("Unsupported operator " + op + " on " + prop);
+        }
+    }
+
+    // a selector on one array element, with the element as variable:
+    // {"name": "surf", "power": {"$gt": 80}} is on variable.name and
+    // variable.power, {"$gt": 80} or 80 on the element itself
+    protected static Selector element(String variable, Source src) throws Exception {
+        if (!src.isObject()) {
+            return new Field(variable, "$eq", src.nextValue());
+        }
+        List<Selector> all = new ArrayList<>();
+        src.beginObject();
+        while (src.hasNext()) {
+            String key = src.nextName();
+            switch (key) {
+                case "$and":
+                    all.add(And.of(elements(variable, src)));
+                    break;
+                case "$or":
+                    all.add(Or.of(elements(variable, src)));
+                    break;
+                case "$nor":
+                    all.add(new Not(Or.of(elements(variable, src))));
+                    break;
+                case "$not":
+                    all.add(new Not(element(variable, src)));
+                    break;
+                default:
+                    all.add(key.startsWith("$") ? operator(variable, key, src) : field(variable + "." + key, src));
+                    break;
+            }
+        }
+        src.endObject();
+        return all.isEmpty() ? TRUE : And.of(all);
+    }
+
+    protected static List<Selector> elements(String variable, Source src) throws Exception {
+        List<Selector> out = new ArrayList<>();
+        src.beginArray();
+        while (src.hasNext()) {
+            out.add(element(variable, src));
+        }
+        src.endArray();
+        if (out.isEmpty()) {
+            throw new Exception("Empty selector list");
+        }
+        return out;
+    }
+
+    // a JSONObject or JSONArray read as a Source
+    static class Tree implements Source {
+        // the containers being read, innermost last, with their position:
+        // an Iterator over an object's names or the next index of an array
+        private final List<Object> containers = new ArrayList<>();
+        private final List<Object> positions = new ArrayList<>();
+        // the value to read next, once its name was read or its array entered
+        private Object next;
+
+        Tree(Object root) {
+            this.next = root;
+        }
+
+        @Override
+        public boolean isObject() throws Exception {
+            return peek() instanceof JSONObject;
+        }
+
+        @Override
+        public boolean isArray() throws Exception {
+            return peek() instanceof JSONArray;
+        }
+
+        @Override
+        public void beginObject() throws Exception {
+            Object v = peek();
+            if (!(v instanceof JSONObject)) {
+                throw new Exception("Expected an object but was " + v);
+            }
+            next = null;
+            containers.add(v);
+            positions.add(((JSONObject) v).keys());
+        }
+
+        @Override
+        public boolean hasNext() {
+            int top = containers.size() - 1;
+            Object position = positions.get(top);
+            if (position instanceof Iterator) {
+                return ((Iterator<?>) position).hasNext();
+            }
+            return (Integer) position < ((JSONArray) containers.get(top)).length();
+        }
+
+        @Override
+        public String nextName() throws Exception {
+            int top = containers.size() - 1;
+            String name = (String) ((Iterator<?>) positions.get(top)).next();
+            next = ((JSONObject) containers.get(top)).get(name);
+            return name;
+        }
+
+        @Override
+        public void endObject() {
+            pop();
+        }
+
+        @Override
+        public void beginArray() throws Exception {
+            Object v = peek();
+            if (!(v instanceof JSONArray)) {
+                throw new Exception("Expected an array but was " + v);
+            }
+            next = null;
+            containers.add(v);
+            positions.add(0);
+        }
+
+        @Override
+        public void endArray() {
+            pop();
+        }
+
+        @Override
+        public Object nextValue() throws Exception {
+            Object v = peek();
+            next = null;
+            return value(v);
+        }
+
+        // the named value, or the array's next element
+        protected Object peek() throws Exception {
+            if (next == null) {
+                int top = containers.size() - 1;
+                int i = (Integer) positions.get(top);
+                next = ((JSONArray) containers.get(top)).get(i);
+                positions.set(top, i + 1);
+            }
+            return next;
+        }
+
+        protected void pop() {
+            containers.remove(containers.size() - 1);
+            positions.remove(positions.size() - 1);
+        }
+    }
+
+    // JSON literals as Expression.value() takes them
+    protected static Object value(Object val) throws JSONException {
+        if (val instanceof JSONArray) {
+            return values((JSONArray) val);
+        }
+        if (val instanceof JSONObject) {
+            JSONObject src = (JSONObject) val;
+            Map<String, Object> out = new LinkedHashMap<>();
+            Iterator<String> keys = src.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                out.put(key, value(src.get(key)));
+            }
+            return out;
+        }
+        return val;
+    }
+
+    protected static List<Object> values(JSONArray src) throws JSONException {
+        List<Object> out = new ArrayList<>(src.length());
+        for (int i = 0; i < src.length(); i++) {
+            out.add(value(src.get(i)));
+        }
+        return out;
+    }
+
+    // ANDed $eq, $in and range conditions on the same field collapse into the
+    // tightest equivalent ones. Returns null when they contradict each other.
+    // Only literals of the same type are compared; parameters are left alone.
+    protected static List<Selector> merge(List<Selector> children) {
+        Map<String, List<Field>> groups = new HashMap<>();
+        for (Selector child : children) {
+            if (child instanceof Field && ((Field) child).isComparable()) {
+                Field f = (Field) child;
+                List<Field> group = groups.get(f.prop);
+                if (group == null) {
+                    group = new ArrayList<>();
+                    groups.put(f.prop, group);
+                }
+                group.add(f);
+            }
+        }
+        List<Selector> out = new ArrayList<>();
+        for (Selector child : children) {
+            if (!(child instanceof Field) || !((Field) child).isComparable()) {
+                out.add(child);
+                continue;
+            }
+            List<Field> group = groups.remove(((Field) child).prop);
+            if (group == null) {
+                // already merged with an earlier condition on this field
+                continue;
+            }
+            if (group.size() == 1) {
+                out.add(child);
+                continue;
+            }
+            List<Field> merged = tighten(group);
+            if (merged == null) {
+                return null;
+            }
+            out.addAll(merged);
+        }
+        return out;
+    }
+
+    protected static List<Field> tighten(List<Field> group) {
+        Field eq = null;
+        Field lower = null;
+        Field upper = null;
+        List<Field> in = new ArrayList<>();
+        // bounds of another type than the one kept, left as they are
+        List<Field> rest = new ArrayList<>();
+        for (Field f : group) {
+            switch (f.op) {
+                case "$eq":
+                    if (eq != null && !Values.key(eq.value).equals(Values.key(f.value))) {
+                        return null;
+                    }
+                    eq = f;
+                    break;
+                case "$in":
+                    in.add(f);
+                    break;
+                case "$gt":
+                case "$gte":
+                    if (lower == null) {
+                        lower = f;
+                    } else {
+                        Integer c = Values.compare(f.value, lower.value);
+                        if (c == null) {
+                            rest.add(f);
+                        } else if (c > 0 || (c == 0 && "$gt".equals(f.op))) {
+                            lower = f;
+                        }
+                    }
+                    break;
+                default:
+                    if (upper == null) {
+                        upper = f;
+                    } else {
+                        Integer c = Values.compare(f.value, upper.value);
+                        if (c == null) {
+                            rest.add(f);
+                        } else if (c < 0 || (c == 0 && "$lt".equals(f.op))) {
+                            upper = f;
+                        }
+                    }
+                    break;
+            }
+        }
+        if (lower != null && upper != null) {
+            Integer c = Values.compare(lower.value, upper.value);
+            if (c != null && (c > 0 || (c == 0 && ("$gt".equals(lower.op) || "$lt".equals(upper.op))))) {
+                return null;
+            }
+        }
+
+        List<Field> out = new ArrayList<>();
+        if (eq == null) {
+            // $in on an array field matches any element, so $in sets are
+            // only ever checked against a scalar $eq, never intersected
+            out.addAll(in);
+            if (lower != null) {
+                out.add(lower);
+            }
+            if (upper != null) {
+                out.add(upper);
+            }
+            out.addAll(rest);
+            return out;
+        }
+
+        // $eq pins a scalar: the other conditions either hold for it or contradict it
+        for (Field f : in) {
+            if (!Values.contains((List<?>) f.value, eq.value)) {
+                return null;
+            }
+        }
+        out.add(eq);
+        for (Field bound : new Field[]{lower, upper}) {
+            if (bound == null) {
+                continue;
+            }
+            Boolean holds = Values.satisfies(eq.value, bound.op, bound.value);
+            if (Boolean.FALSE.equals(holds)) {
+                return null;
+            }
+            if (holds == null) {
+                out.add(bound);
+            }
+        }
+        for (Field f : rest) {
+            Boolean holds = Values.satisfies(eq.value, f.op, f.value);
+            if (Boolean.FALSE.equals(holds)) {
+                return null;
+            }
+            if (holds == null) {
+                out.add(f);
+            }
+        }
+        return out;
+    }
+
+    // a lower and an upper bound on the same field become one Range, so that
+    // SQLite sees a bounded range it can seek rather than two separate tests
+    protected static List<Selector> range(List<Selector> children) {
+        Map<String, Field> lower = new HashMap<>();
+        Map<String, Field> upper = new HashMap<>();
+        Set<String> ambiguous = new HashSet<>();
+        for (Selector child : children) {
+            if (!(child instanceof Field) || !((Field) child).isBound()) {
+                continue;
+            }
+            Field f = (Field) child;
+            Map<String, Field> side = f.isLower() ? lower : upper;
+            if (side.put(f.prop, f) != null) {
+                // bounds of different types, left as they are
+                ambiguous.add(f.prop);
+            }
+        }
+        List<Selector> out = new ArrayList<>(children.size());
+        for (Selector child : children) {
+            if (!(child instanceof Field) || !((Field) child).isBound()) {
+                out.add(child);
+                continue;
+            }
+            Field f = (Field) child;
+            if (ambiguous.contains(f.prop) || !lower.containsKey(f.prop) || !upper.containsKey(f.prop)) {
+                out.add(child);
+            } else if (f.isLower()) {
+                out.add(new Range(f, upper.get(f.prop)));
+            }
+        }
+        return out;
+    }
+
+    protected static Predicate[] predicates(List<Selector> children, Set<String> vars) throws Exception {
+        Predicate[] out = new Predicate[children.size()];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = children.get(i).predicate(vars);
+        }
+        return out;
+    }
+
+    static class Constant extends Selector {
+        final boolean value;
+
+        Constant(boolean value) {
+            this.value = value;
+        }
+
+        @Override
+        protected Expression compile(Set<String> vars) {
+            return Expression.booleanValue(value);
+        }
+
+        @Override
+        protected Predicate predicate(Set<String> vars) {
+            return new Predicate.Constant(value ? Predicate.TRUE : Predicate.FALSE);
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(value);
+        }
+    }
+
+    static class And extends Selector {
+        final List<Selector> children;
+
+        And(List<Selector> children) {
+            this.children = children;
+        }
+
+        static Selector of(List<Selector> children) {
+            return (children.size() == 1) ? children.get(0) : new And(children);
+        }
+
+        @Override
+        protected Expression compile(Set<String> vars) throws Exception {
+            Expression out = children.get(0).compile(vars);
+            for (int i = 1; i < children.size(); i++) {
+                out = out.and(children.get(i).compile(vars));
+            }
+            return out;
+        }
+
+        @Override
+        protected Predicate predicate(Set<String> vars) throws Exception {
+            return new Predicate.And(predicates(children, vars));
+        }
+
+        // flatten, drop TRUE and duplicates, fold FALSE, merge conditions per field
+        @Override
+        protected Selector optimize(boolean negated) {
+            List<Selector> flat = new ArrayList<>();
+            for (Selector child : children) {
+                Selector o = child.optimize(negated);
+                if (o instanceof And) {
+                    flat.addAll(((And) o).children);
+                } else {
+                    flat.add(o);
+                }
+            }
+            Set<String> seen = new HashSet<>();
+            List<Selector> out = new ArrayList<>();
+            for (Selector child : flat) {
+                if (child == FALSE) {
+                    return FALSE;
+                }
+                if (child != TRUE && seen.add(child.toString())) {
+                    out.add(child);
+                }
+            }
+            List<Selector> merged = merge(out);
+            if (merged == null) {
+                // contradictory conditions are unknown rather than false where
+                // the field is missing, which $not must keep
+                return negated ? of(out) : FALSE;
+            }
+            if (merged.isEmpty()) {
+                return TRUE;
+            }
+            return of(range(merged));
+        }
+
+        @Override
+        public String toString() {
+            return "$and" + children;
+        }
+    }
+
+    static class Or extends Selector {
+        final List<Selector> children;
+
+        Or(List<Selector> children) {
+            this.children = children;
+        }
+
+        static Selector of(List<Selector> children) {
+            return (children.size() == 1) ? children.get(0) : new Or(children);
+        }
+
+        @Override
+        protected Expression compile(Set<String> vars) throws Exception {
+            Expression out = children.get(0).compile(vars);
+            for (int i = 1; i < children.size(); i++) {
+                out = out.or(children.get(i).compile(vars));
+            }
+            return out;
+        }
+
+        @Override
+        protected Predicate predicate(Set<String> vars) throws Exception {
+            return new Predicate.Or(predicates(children, vars));
+        }
+
+        // flatten, drop FALSE and duplicates, fold TRUE, turn $eq/$in on one field into one $in
+        @Override
+        protected Selector optimize(boolean negated) {
+            List<Selector> flat = new ArrayList<>();
+            for (Selector child : children) {
+                Selector o = child.optimize(negated);
+                if (o instanceof Or) {
+                    flat.addAll(((Or) o).children);
+                } else {
+                    flat.add(o);
+                }
+            }
+            Set<String> seen = new HashSet<>();
+            List<Selector> out = new ArrayList<>();
+            for (Selector child : flat) {
+                if (child == TRUE) {
+                    return TRUE;
+                }
+                if (child != FALSE && seen.add(child.toString())) {
+                    out.add(child);
+                }
+            }
+            out = in(out);
+            if (out.isEmpty()) {
+                return FALSE;
+            }
+            return of(out);
+        }
+
+        protected static List<Selector> in(List<Selector> children) {
+            Map<String, Integer> counts = new HashMap<>();
+            for (Selector child : children) {
+                if (child instanceof Field && ((Field) child).isMember()) {
+                    String prop = ((Field) child).prop;
+                    Integer n = counts.get(prop);
+                    counts.put(prop, (n == null) ? 1 : n + 1);
+                }
+            }
+            Map<String, List<Object>> values = new HashMap<>();
+            Map<String, Integer> positions = new LinkedHashMap<>();
+            List<Selector> out = new ArrayList<>();
+            for (Selector child : children) {
+                if (!(child instanceof Field) || !((Field) child).isMember() || counts.get(((Field) child).prop) == 1) {
+                    out.add(child);
+                    continue;
+                }
+                Field f = (Field) child;
+                List<Object> in = values.get(f.prop);
+                if (in == null) {
+                    in = new ArrayList<>();
+                    values.put(f.prop, in);
+                    positions.put(f.prop, out.size());
+                    out.add(null);
+                }
+                if ("$eq".equals(f.op)) {
+                    in.add(f.value);
+                } else {
+                    in.addAll((List<?>) f.value);
+                }
+            }
+            for (Map.Entry<String, Integer> e : positions.entrySet()) {
+                out.set(e.getValue(), new Field(e.getKey(), "$in", Values.distinct(values.get(e.getKey()))));
+            }
+            return out;
+        }
+
+        @Override
+        public String toString() {
+            return "$or" + children;
+        }
+    }
+
+    static class Not extends Selector {
+        final Selector child;
+
+        Not(Selector child) {
+            this.child = child;
+        }
+
+        @Override
+        protected Expression compile(Set<String> vars) throws Exception {
+            return Expression.not(child.compile(vars));
+        }
+
+        @Override
+        protected Predicate predicate(Set<String> vars) throws Exception {
+            return new Predicate.Not(child.predicate(vars));
+        }
+
+        @Override
+        protected Selector optimize(boolean negated) {
+            Selector o = child.optimize(!negated);
+            if (o == TRUE) {
+                return FALSE;
+            }
+            if (o == FALSE) {
+                return TRUE;
+            }
+            if (o instanceof Not) {
+                return ((Not) o).child;
+            }
+            return new Not(o);
+        }
+
+        @Override
+        public String toString() {
+            return "$not(" + child + ")";
+        }
+    }
+
+    // one operator on one property
+    static class Field extends Selector {
+        final String prop;
+        final String op;
+        // a literal, a Binder.Param, or a List of those for array operators
+        final Object value;
+
+        Field(String prop, String op, Object value) {
+            this.prop = prop;
+            this.op = op;
+            this.value = value;
+        }
+
+        // a range bound over a literal or a parameter; null selects notNullOrMissing
+        boolean isBound() {
+            switch (op) {
+                case "$gt":
+                case "$gte":
+                case "$lt":
+                case "$lte":
+                    return Values.isScalar(value) || value instanceof Binder.Param;
+                default:
+                    return false;
+            }
+        }
+
+        boolean isLower() {
+            return "$gt".equals(op) || "$gte".equals(op);
+        }
+
+        // $eq or $in, which an $or can fold together
+        boolean isMember() {
+            return "$eq".equals(op) || "$in".equals(op);
+        }
+
+        // $eq, $in or a range bound over plain literals, which an $and can merge
+        boolean isComparable() {
+            switch (op) {
+                case "$eq":
+                case "$gt":
+                case "$gte":
+                case "$lt":
+                case "$lte":
+                    return Values.isScalar(value);
+                case "$in":
+                    for (Object v : (List<?>) value) {
+                        if (!Values.isScalar(v)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        protected Expression compile(Set<String> vars) throws Exception {
+            Expression field = CBLiteMango.property(prop, vars);
+            switch (op) {
+                case "$eq":
+                    return CBLiteMango.eq(field, value);
+                case "$lt":
+                    return CBLiteMango.lt(field, value);
+                case "$lte":
+                    return CBLiteMango.lte(field, value);
+                case "$ne":
+                    return CBLiteMango.ne(field, value);
+                case "$gte":
+                    return CBLiteMango.gte(field, value);
+                case "$gt":
+                    return CBLiteMango.gt(field, value);
+                case "$in":
+                    return CBLiteMango.in(field, CBLiteMango.literals((List<?>) value));
+                case "$nin":
+                    return CBLiteMango.nin(field, CBLiteMango.literals((List<?>) value));
+                case "$all":
+                    return CBLiteMango.all(prop, field, CBLiteMango.literals((List<?>) value));
+                case "$elemMatch":
+                    return CBLiteMango.elemMatch(prop, field, CBLiteMango.literals((List<?>) value));
+                case "$exists":
+                    return CBLiteMango.exists(field, (Boolean) value);
+                case "$mod":
+                    return CBLiteMango.mod(field, (Double) value);
+                case "$regex":
+                    return CBLiteMango.regex(field, (String) value);
+                case "$size":
+                    return CBLiteMango.size(field, (Double) value);
+                default:
+                    throw new Exception("Unsupported operator " + op + " on " + prop);
+            }
+        }
+
+        @Override
+        protected Predicate predicate(Set<String> vars) throws Exception {
+            return Predicate.field(new Predicate.Path(prop, vars), op, value);
+        }
+
+        @Override
+        protected Selector optimize(boolean negated) {
+            // the range is false where the pattern is unknown, on non-strings,
+            // which $not would turn into matches
+            if ("$regex".equals(op) && value instanceof String && !negated) {
+                return prefix(RegexPrefix.of((String) value));
+            }
+            if ("$in".equals(op)) {
+                List<Object> in = Values.distinct((List<?>) value);
+                if (in.isEmpty()) {
+                    return FALSE;
+                }
+                return (in.size() == ((List<?>) value).size()) ? this : new Field(prop, op, in);
+            }
+            return this;
+        }
+
+        // an anchored $regex as a range an index can seek, and the pattern
+        // when the range alone isn't the same, see RegexPrefix
+        protected Selector prefix(RegexPrefix p) {
+            if (p == null) {
+                return this;
+            }
+            Selector range = p.ignoreCase
+                    ? new LowerPrefix(prop, p.prefix)
+                    : new Range(new Field(prop, "$gte", p.prefix), new Field(prop, "$lt", p.prefix + RegexPrefix.MAX));
+            if (p.exact) {
+                return range;
+            }
+            List<Selector> both = new ArrayList<>(2);
+            both.add(range);
+            both.add(this);
+            return new And(both);
+        }
+
+        @Override
+        public String toString() {
+            return JSONObject.quote(prop) + ":{" + op + ":" + Values.key(value) + "}";
+        }
+    }
+
+    // {"$elemMatch": {...}}: some element of prop matches the sub-selector,
+    // {"$allMatch": {...}}: prop has elements and all of them match. Compiled
+    // to ANY / ANY AND EVERY variable IN prop SATISFIES ..., so SQLite tests
+    // the elements; the sub-selector's properties are paths on the variable.
+    static class Match extends Selector {
+        final String prop;
+        final String op;
+        final String variable;
+        final Selector element;
+
+        Match(String prop, String op, String variable, Selector element) {
+            this.prop = prop;
+            this.op = op;
+            this.variable = variable;
+            this.element = element;
+        }
+
+        static Match of(String prop, String op, Source src) throws Exception {
+            String variable = variable(prop, op);
+            return new Match(prop, op, variable, element(variable, src));
+        }
+
+        // unique per path: a nested match is on a path that starts with the
+        // outer variable
+        static String variable(String prop, String op) {
+            return ("$allMatch".equals(op) ? "__all_match_" : "__elem_match_") + prop.replace('.', '_') + "__";
+        }
+
+        // the element's paths start with variable, prop may start with an
+        // outer one
+        protected Set<String> scope(Set<String> vars) {
+            Set<String> inner = new HashSet<>(vars);
+            inner.add(variable);
+            return inner;
+        }
+
+        @Override
+        protected Expression compile(Set<String> vars) throws Exception {
+            Expression array = CBLiteMango.property(prop, vars);
+            if ("$allMatch".equals(op)) {
+                return CBLiteMango.allMatch(array, variable, element.compile(scope(vars)));
+            }
+            return CBLiteMango.elemMatch(array, variable, element.compile(scope(vars)));
+        }
+
+        @Override
+        protected Predicate predicate(Set<String> vars) throws Exception {
+            return new Predicate.Match(new Predicate.Path(prop, vars), "$allMatch".equals(op), element.predicate(scope(vars)));
+        }
+
+        // no index can seek a variable, so the element is optimized as if
+        // negated, which keeps $regex as it is
+        @Override
+        protected Selector optimize(boolean negated) {
+            Selector o = element.optimize(true);
+            if (o == FALSE && !negated) {
+                // no element matches; where prop is missing that's unknown
+                // rather than false, which only matters under $not
+                return FALSE;
+            }
+            return (o == element) ? this : new Match(prop, op, variable, o);
+        }
+
+        @Override
+        public String toString() {
+            return JSONObject.quote(prop) + ":{" + op + ":" + element + "}";
+        }
+    }
+
+    // {"$text": "words"} or {"$text": {"$search": "words", "$index": name}}:
+    // a full-text match on an index made by createIndex with "type": "text",
+    // by default the one named Indexes.TEXT. Couchbase Lite only allows it at
+    // the top level of the selector, or in a top-level $and.
+    static class Text extends Selector {
+        final String index;
+        final String query;
+
+        Text(String index, String query) {
+            this.index = index;
+            this.query = query;
+        }
+
+        static Text of(Object val) throws Exception {
+            if (val instanceof String) {
+                return new Text(Indexes.TEXT, (String) val);
+            }
+            // a JSONObject, or a Map from a Source
+            JSONObject src = (val instanceof Map) ? new JSONObject((Map<?, ?>) val) : (JSONObject) val;
+            return new Text(src.optString("$index", Indexes.TEXT), src.getString("$search"));
+        }
+
+        // the index of a top-level $text, as index(JSONObject) finds it
+        static String index(Selector where) {
+            if (where instanceof Text) {
+                return ((Text) where).index;
+            }
+            if (where instanceof And) {
+                for (Selector child : ((And) where).children) {
+                    String index = index(child);
+                    if (index != null) {
+                        return index;
+                    }
+                }
+            }
+            return null;
+        }
+
+        // the index the selector's $text searches, or null
+        static String index(JSONObject selector) throws Exception {
+            if (selector.has("$text")) {
+                return of(selector.get("$text")).index;
+            }
+            JSONArray and = selector.optJSONArray("$and");
+            for (int i = 0; and != null && i < and.length(); i++) {
+                String index = index(and.getJSONObject(i));
+                if (index != null) {
+                    return index;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        protected Expression compile(Set<String> vars) {
+            return CBLiteMango.text(index, query);
+        }
+
+        @Override
+        protected Predicate predicate(Set<String> vars) throws Exception {
+            throw new Exception("$text can't be evaluated in memory");
+        }
+
+        @Override
+        public String toString() {
+            return "$text:{" + JSONObject.quote(index) + ":" + JSONObject.quote(query) + "}";
+        }
+    }
+
+    // prefix <= lower(prop) < prefix + U+FFFF, which a Function.lower index
+    // on prop can seek
+    static class LowerPrefix extends Selector {
+        final String prop;
+        final String prefix;
+
+        LowerPrefix(String prop, String prefix) {
+            this.prop = prop;
+            this.prefix = prefix;
+        }
+
+        @Override
+        protected Expression compile(Set<String> vars) {
+            return CBLiteMango.lowerPrefix(CBLiteMango.property(prop, vars), prefix);
+        }
+
+        @Override
+        protected Predicate predicate(Set<String> vars) {
+            return new Predicate.LowerRange(new Predicate.Path(prop, vars), prefix, prefix + RegexPrefix.MAX);
+        }
+
+        @Override
+        public String toString() {
+            return "lower(" + JSONObject.quote(prop) + "):{$prefix:" + JSONObject.quote(prefix) + "}";
+        }
+    }
+
+    // lower <= prop <= upper, or with exclusive ends, on one field
+    static class Range extends Selector {
+        final Field lower;
+        final Field upper;
+
+        Range(Field lower, Field upper) {
+            this.lower = lower;
+            this.upper = upper;
+        }
+
+        @Override
+        protected Expression compile(Set<String> vars) throws Exception {
+            if ("$gte".equals(lower.op) && "$lte".equals(upper.op)) {
+                return CBLiteMango.between(CBLiteMango.property(lower.prop, vars), lower.value, upper.value);
+            }
+            return lower.compile(vars).and(upper.compile(vars));
+        }
+
+        @Override
+        protected Predicate predicate(Set<String> vars) throws Exception {
+            return new Predicate.And(new Predicate[]{lower.predicate(vars), upper.predicate(vars)});
+        }
+
+        @Override
+        public String toString() {
+            return lower + "&" + upper;
+        }
+    }
+}
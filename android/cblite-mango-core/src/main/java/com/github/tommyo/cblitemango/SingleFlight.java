@@ -0,0 +1,118 @@
+package com.github.tommyo.cblitemango;
+
+import com.couchbase.lite.Database;
+import com.couchbase.lite.Result;
+
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+// identical requests that arrive while one is executing wait for it and share
+// its rows instead of running again. Keys are request fingerprints, so literal
+// values are part of the key. The rows are read-only and shared by every caller.
+class SingleFlight {
+    // request texts remembered
+    private static final int ALIASES = 256;
+
+    private final Map<Database, Map<String, Call>> databases = new WeakHashMap<>();
+    private long shared;
+
+    // raw request text -> fingerprint, so that repeated texts aren't parsed
+    private final LinkedHashMap<String, String> aliases = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > ALIASES;
+        }
+    };
+
+    static class Call {
+        final CountDownLatch done = new CountDownLatch(1);
+        List<Result> rows;
+        Throwable error;
+    }
+
+    // the key of a request given as text: texts that differ only in spacing or
+    // key order, and the same request as a JSONObject, share it
+    public String key(String req) throws Exception {
+        synchronized (this) {
+            String key = aliases.get(req);
+            if (key != null) {
+                return key;
+            }
+        }
+        String key = CBLiteMango.fingerprint(new JSONObject(req));
+        synchronized (this) {
+            aliases.put(req, key);
+        }
+        return key;
+    }
+
+    // key is a fingerprint, see key()
+    public List<Result> run(Database db, String key, Callable<List<Result>> work) throws Exception {
+        Call call;
+        boolean leader = false;
+        synchronized (this) {
+            Map<String, Call> calls = databases.get(db);
+            if (calls == null) {
+                calls = new HashMap<>();
+                databases.put(db, calls);
+            }
+            call = calls.get(key);
+            if (call == null) {
+                call = new Call();
+                calls.put(key, call);
+                leader = true;
+            } else {
+                shared++;
+            }
+        }
+        if (!leader) {
+            call.done.await();
+            if (call.error instanceof Exception) {
+                throw (Exception) call.error;
+            } else if (call.error != null) {
+                // an Error is the leader's to propagate; waiters see it wrapped
+                throw new Exception("Shared execution failed", call.error);
+            }
+            return call.rows;
+        }
+        try {
+            call.rows = Collections.unmodifiableList(work.call());
+            return call.rows;
+        } catch (Throwable t) {
+            call.error = t;
+            throw t;
+        } finally {
+            synchronized (this) {
+                Map<String, Call> calls = databases.get(db);
+                if (calls != null && calls.get(key) == call) {
+                    calls.remove(key);
+                    if (calls.isEmpty()) {
+                        databases.remove(db);
+                    }
+                }
+            }
+            call.done.countDown();
+        }
+    }
+
+    // requests answered by another one's execution
+    public synchronized long getShared() {
+        return shared;
+    }
+
+    public synchronized int getInFlight() {
+        int n = 0;
+        for (Map<String, Call> calls : databases.values()) {
+            n += calls.size();
+        }
+        return n;
+    }
+}
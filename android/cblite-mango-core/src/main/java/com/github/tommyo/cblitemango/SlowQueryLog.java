@@ -0,0 +1,155 @@
+package com.github.tommyo.cblitemango;
+
+import com.couchbase.lite.Database;
+import com.couchbase.lite.Query;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+// keeps the most recent executions that took longer than a threshold, with
+// their shape, plan, timings and row count (register with
+// CBLiteMango.addMetricsListener). Only slow queries are explained, on the
+// executor when there is one.
+class SlowQueryLog implements MetricsListener {
+    public interface Listener {
+        // once the entry's plan is known
+        void onSlowQuery(Entry entry);
+    }
+
+    public static class Entry {
+        final Database db;
+        final String shape;
+        final long time;
+        final long nanos;
+        final int rows;
+        // null for lookups and chunked requests, or when explain() failed
+        QueryPlan plan;
+
+        Entry(QueryMetrics m) {
+            this.db = m.getDatabase();
+            this.shape = m.getShape();
+            this.time = System.currentTimeMillis();
+            this.nanos = m.getTotalNanos();
+            this.rows = m.getRows();
+        }
+
+        public Database getDatabase() {
+            return db;
+        }
+
+        public String getShape() {
+            return shape;
+        }
+
+        // when the query finished, in milliseconds since the epoch
+        public long getTime() {
+            return time;
+        }
+
+        // parse, build, execute and iterate
+        public long getNanos() {
+            return nanos;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+
+        public synchronized QueryPlan getPlan() {
+            return plan;
+        }
+
+        @Override
+        public String toString() {
+            return "SlowQuery{shape=" + shape
+                    + ", nanos=" + nanos
+                    + ", rows=" + rows
+                    + ", plan=" + getPlan() + "}";
+        }
+    }
+
+    private final long thresholdNanos;
+    private final int capacity;
+    private final Executor executor;
+    private final Deque<Entry> entries = new ArrayDeque<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    public SlowQueryLog(long thresholdNanos, int capacity) {
+        this(thresholdNanos, capacity, null);
+    }
+
+    // plans are explained on executor, or on the querying thread when null
+    public SlowQueryLog(long thresholdNanos, int capacity, Executor executor) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Slow query log capacity must be positive");
+        }
+        this.thresholdNanos = thresholdNanos;
+        this.capacity = capacity;
+        this.executor = executor;
+    }
+
+    public void addListener(Listener l) {
+        listeners.add(l);
+    }
+
+    public void removeListener(Listener l) {
+        listeners.remove(l);
+    }
+
+    @Override
+    public void onQuery(final QueryMetrics m) {
+        if (m.getRows() < 0 || m.getTotalNanos() < thresholdNanos) {
+            // compiled but not executed, or fast enough
+            return;
+        }
+        final Entry entry = new Entry(m);
+        synchronized (this) {
+            if (entries.size() >= capacity) {
+                entries.removeFirst();
+            }
+            entries.addLast(entry);
+        }
+        final Query q = m.getQuery();
+        Runnable explain = new Runnable() {
+            @Override
+            public void run() {
+                QueryPlan plan = null;
+                if (q != null) {
+                    try {
+                        plan = CBLiteMango.plan(q, m.getRequest());
+                    } catch (Exception e) {
+                        // logged without a plan
+                    }
+                }
+                synchronized (entry) {
+                    entry.plan = plan;
+                }
+                for (Listener l : listeners) {
+                    l.onSlowQuery(entry);
+                }
+            }
+        };
+        if (executor == null) {
+            explain.run();
+        } else {
+            executor.execute(explain);
+        }
+    }
+
+    // oldest first
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(entries);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public long getThresholdNanos() {
+        return thresholdNanos;
+    }
+}
@@ -0,0 +1,39 @@
+package com.github.tommyo.cblitemango;
+
+import com.couchbase.lite.Database;
+import com.couchbase.lite.Query;
+
+import org.json.JSONObject;
+
+import java.io.Reader;
+
+// translates a request straight from the token stream: the selector goes
+// through the same grammar as Selector.parse(JSONObject), without a JSONObject
+// of it ever being built, and the other members are built like
+// CBLiteMango.build() builds them
+class StreamParser {
+    public static Query query(Database db, Reader in) throws Exception {
+        JsonPullParser p = new JsonPullParser(in);
+        Selector where = null;
+        // fields, sort, limit, aggregate, ...: small next to the selector
+        JSONObject rest = new JSONObject();
+        p.beginObject();
+        while (p.hasNext()) {
+            String name = p.nextName();
+            if ("selector".equals(name)) {
+                where = Selector.parse(p);
+            } else {
+                rest.put(name, JSONObject.wrap(p.nextValue()));
+            }
+        }
+        p.endObject();
+        if (p.peek() != JsonPullParser.Token.END_DOCUMENT) {
+            // a second value after the request, which new JSONObject() rejects too
+            throw new Exception("Expected end of document");
+        }
+        if (where == null) {
+            throw new Exception("Missing selector");
+        }
+        return CBLiteMango.build(db, rest, where);
+    }
+}
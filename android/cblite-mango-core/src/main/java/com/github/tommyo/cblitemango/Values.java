@@ -0,0 +1,132 @@
+package com.github.tommyo.cblitemango;
+
+import com.couchbase.lite.Array;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// comparisons between selector literals, for the optimizer
+class Values {
+    public static boolean isScalar(Object v) {
+        return v instanceof String || v instanceof Number || v instanceof Boolean;
+    }
+
+    // identity of a literal: 5, 5L and 5.0 are the same value, "5" is not,
+    // and a parameter is itself
+    public static String key(Object v) {
+        StringBuilder out = new StringBuilder();
+        try {
+            Fingerprint.write(out, v);
+        } catch (JSONException e) {
+            out.append(v);
+        }
+        return out.toString();
+    }
+
+    // sign of a - b, or null when they are not of the same comparable type
+    public static Integer compare(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            if (isIntegral(a) && isIntegral(b)) {
+                return Long.compare(((Number) a).longValue(), ((Number) b).longValue());
+            }
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+        if (a instanceof String && b instanceof String) {
+            return Integer.signum(((String) a).compareTo((String) b));
+        }
+        if (a instanceof Boolean && b instanceof Boolean) {
+            return Boolean.compare((Boolean) a, (Boolean) b);
+        }
+        return null;
+    }
+
+    // whether v passes "$gt bound" etc., or null when that can't be known here
+    public static Boolean satisfies(Object v, String op, Object bound) {
+        Integer c = compare(v, bound);
+        if (c == null) {
+            return null;
+        }
+        switch (op) {
+            case "$gt":
+                return c > 0;
+            case "$gte":
+                return c >= 0;
+            case "$lt":
+                return c < 0;
+            case "$lte":
+                return c <= 0;
+            default:
+                return null;
+        }
+    }
+
+    public static boolean contains(List<?> values, Object v) {
+        String k = key(v);
+        for (Object o : values) {
+            if (key(o).equals(k)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // first occurrence of each value, in order
+    public static List<Object> distinct(List<?> values) {
+        Set<String> seen = new HashSet<>();
+        List<Object> out = new ArrayList<>(values.size());
+        for (Object v : values) {
+            if (seen.add(key(v))) {
+                out.add(v);
+            }
+        }
+        return out;
+    }
+
+    // N1QL collation: missing and null, booleans, numbers, strings, arrays, objects
+    public static int collate(Object a, Object b) {
+        int ra = rank(a);
+        int rb = rank(b);
+        if (ra != rb) {
+            return (ra < rb) ? -1 : 1;
+        }
+        Integer c = compare(a, b);
+        return (c == null) ? 0 : c;
+    }
+
+    public static final Comparator<Object> COLLATION = new Comparator<Object>() {
+        @Override
+        public int compare(Object a, Object b) {
+            return collate(a, b);
+        }
+    };
+
+    protected static int rank(Object v) {
+        if (v == null || v == JSONObject.NULL) {
+            return 0;
+        }
+        if (v instanceof Boolean) {
+            return 1;
+        }
+        if (v instanceof Number) {
+            return 2;
+        }
+        if (v instanceof String) {
+            return 3;
+        }
+        if (v instanceof List || v instanceof JSONArray || v instanceof Array) {
+            return 4;
+        }
+        return 5;
+    }
+
+    private static boolean isIntegral(Object n) {
+        return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+    }
+}
@@ -14,10 +14,12 @@ import com.couchbase.lite.ArrayFunction;
 import com.couchbase.lite.DataSource;
 import com.couchbase.lite.Database;
 import com.couchbase.lite.DatabaseConfiguration;
+import com.couchbase.lite.Document;
 import com.couchbase.lite.Expression;
 import com.couchbase.lite.Meta;
 import com.couchbase.lite.MutableArray;
 import com.couchbase.lite.MutableDocument;
+import com.couchbase.lite.Ordering;
 import com.couchbase.lite.Query;
 import com.couchbase.lite.QueryBuilder;
 import com.couchbase.lite.Result;
@@ -25,9 +27,23 @@ import com.couchbase.lite.ResultSet;
 import com.couchbase.lite.SelectResult;
 import com.couchbase.lite.VariableExpression;
 
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
@@ -63,7 +79,7 @@ public class CBLiteMangoTest {
         Query expected = QueryBuilder
                 .select(SelectResult.expression(Meta.id))
                 .from(DataSource.database(db))
-                .where(Expression.property("_id").equalTo(Expression.string("pikachu")));
+                .where(Meta.id.equalTo(Expression.string("pikachu")));
 
         assertEquals(expected.explain(), got.explain());
 
@@ -85,7 +101,7 @@ public class CBLiteMangoTest {
         Query expected = QueryBuilder
                 .select(SelectResult.expression(Meta.id))
                 .from(DataSource.database(db))
-                .where(Expression.property("_id").equalTo(Expression.string("pikachu")));
+                .where(Meta.id.equalTo(Expression.string("pikachu")));
 
         assertEquals(expected.explain(), got.explain());
 
@@ -107,7 +123,7 @@ public class CBLiteMangoTest {
         Query expected = QueryBuilder
                 .select(SelectResult.expression(Meta.id))
                 .from(DataSource.database(db))
-                .where(Expression.negated(Expression.property("_id").equalTo(Expression.string("pikachu"))));
+                .where(Expression.negated(Meta.id.equalTo(Expression.string("pikachu"))));
 
         assertEquals(expected.explain(), got.explain());
 
@@ -129,7 +145,7 @@ public class CBLiteMangoTest {
         Query expected = QueryBuilder
                 .select(SelectResult.expression(Meta.id), SelectResult.property("rank"))
                 .from(DataSource.database(db))
-                .where(Expression.property("_id").equalTo(Expression.string("pikachu"))
+                .where(Meta.id.equalTo(Expression.string("pikachu"))
                         .and(Expression.property("rank").equalTo(Expression.intValue(1))));
 
         assertEquals(expected.explain(), got.explain());
@@ -158,7 +174,7 @@ public class CBLiteMangoTest {
         Query expected = QueryBuilder
                 .select(SelectResult.expression(Meta.id))
                 .from(DataSource.database(db))
-                .where(Expression.property("_id").equalTo(Expression.string("pikachu"))
+                .where(Meta.id.equalTo(Expression.string("pikachu"))
                         .and(Expression.property("rank").equalTo(Expression.intValue(1)))
                 );
 
@@ -187,8 +203,7 @@ public class CBLiteMangoTest {
         Query expected = QueryBuilder
                 .select(SelectResult.expression(Meta.id))
                 .from(DataSource.database(db))
-                .where(Expression.property("_id").equalTo(Expression.string("mario"))
-                        .or(Expression.property("_id").equalTo(Expression.string("luigi"))));
+                .where(Meta.id.in(Expression.string("mario"), Expression.string("luigi")));
 
         assertEquals(expected.explain(), got.explain());
 
@@ -216,10 +231,9 @@ public class CBLiteMangoTest {
         Query expected = QueryBuilder
                 .select(SelectResult.expression(Meta.id))
                 .from(DataSource.database(db))
-                .where(Expression.property("_id").notNullOrMissing()
+                .where(Meta.id.notNullOrMissing()
                         .and(
-                                Expression.negated(Expression.property("_id").equalTo(Expression.string("mario"))
-                                        .or(Expression.property("_id").equalTo(Expression.string("luigi"))))
+                                Expression.negated(Meta.id.in(Expression.string("mario"), Expression.string("luigi")))
                         ));
 
         assertEquals(expected.explain(), got.explain());
@@ -245,7 +259,7 @@ public class CBLiteMangoTest {
         Query expected = QueryBuilder
                 .select(SelectResult.expression(Meta.id))
                 .from(DataSource.database(db))
-                .where(Expression.property("_id").in(Expression.string("pikachu"), Expression.string("puff")));
+                .where(Meta.id.in(Expression.string("pikachu"), Expression.string("puff")));
 
         assertEquals(expected.explain(), got.explain());
 
@@ -267,7 +281,7 @@ public class CBLiteMangoTest {
         Query expected = QueryBuilder
                 .select(SelectResult.expression(Meta.id))
                 .from(DataSource.database(db))
-                .where(Expression.negated(Expression.property("_id").in(Expression.string("pikachu"), Expression.string("puff"))));
+                .where(Expression.negated(Meta.id.in(Expression.string("pikachu"), Expression.string("puff"))));
 
         assertEquals(expected.explain(), got.explain());
 
@@ -376,7 +390,7 @@ public class CBLiteMangoTest {
         Query expected = QueryBuilder
                 .select(SelectResult.expression(Meta.id))
                 .from(DataSource.database(db))
-                .where(Expression.property("_id").greaterThan(Expression.string("m")));
+                .where(Meta.id.greaterThan(Expression.string("m")));
 
         assertEquals(expected.explain(), got.explain());
 
@@ -395,7 +409,7 @@ public class CBLiteMangoTest {
         Query expected = QueryBuilder
                 .select(SelectResult.expression(Meta.id))
                 .from(DataSource.database(db))
-                .where(Expression.property("_id").lessThanOrEqualTo(Expression.string("luigi")));
+                .where(Meta.id.lessThanOrEqualTo(Expression.string("luigi")));
 
         assertEquals(expected.explain(), got.explain());
 
@@ -414,7 +428,7 @@ public class CBLiteMangoTest {
         Query expected = QueryBuilder
                 .select(SelectResult.expression(Meta.id))
                 .from(DataSource.database(db))
-                .where(Expression.property("_id").notNullOrMissing());
+                .where(Meta.id.notNullOrMissing());
 
         assertEquals(expected.explain(), got.explain());
 
@@ -492,7 +506,7 @@ public class CBLiteMangoTest {
         Query expected = QueryBuilder
                 .select(SelectResult.expression(Meta.id), SelectResult.property("rank"))
                 .from(DataSource.database(db))
-                .where(Expression.property("_id").in(Expression.string("pikachu"), Expression.string("puff"))
+                .where(Meta.id.in(Expression.string("pikachu"), Expression.string("puff"))
                         .and(Expression.property("rank").lessThan(Expression.number(8))));
 
         assertEquals(expected.explain(), got.explain());
@@ -509,6 +523,1109 @@ public class CBLiteMangoTest {
 
     }
 
+    @Test
+    public void range() throws Exception {
+        String selector = "{ \"rank\": { \"$gte\": 2, \"$lte\": 8, \"$ne\": 7 } }";
+        String fields = "[ \"_id\", \"rank\" ]";
+        Query got = CBLiteMango.query(db, String.format("{ \"selector\": %s, \"fields\": %s }", selector, fields));
+
+        Query expected = QueryBuilder
+                .select(SelectResult.expression(Meta.id), SelectResult.property("rank"))
+                .from(DataSource.database(db))
+                .where(Expression.property("rank").between(Expression.intValue(2), Expression.intValue(8))
+                        .and(Expression.property("rank").notEqualTo(Expression.intValue(7))));
+
+        assertEquals(expected.explain(), got.explain());
+
+        long found = 0;
+        for (Result row : got.execute()) {
+            found++;
+            assertThat(row.getInt("rank"), greaterThanOrEqualTo(2));
+            assertThat(row.getInt("rank"), lessThanOrEqualTo(8));
+            assertNotEquals(7, row.getInt("rank"));
+        }
+        assertThat(found, greaterThan(0L));
+
+        // exclusive ends stay a pair of comparisons, side by side
+        selector = "{ \"rank\": { \"$lt\": 8, \"$gt\": 2 } }";
+        got = CBLiteMango.query(db, String.format("{ \"selector\": %s, \"fields\": %s }", selector, fields));
+        expected = QueryBuilder
+                .select(SelectResult.expression(Meta.id), SelectResult.property("rank"))
+                .from(DataSource.database(db))
+                .where(Expression.property("rank").greaterThan(Expression.intValue(2))
+                        .and(Expression.property("rank").lessThan(Expression.intValue(8))));
+
+        assertEquals(expected.explain(), got.explain());
+    }
+
+    @Test
+    public void optimizer() throws Exception {
+        // nested $and flattened, the duplicate dropped, the two lower bounds merged
+        String selector = "{ \"$and\": [ { \"rank\": { \"$gt\": 1 } }, { \"$and\": [ { \"rank\": { \"$gte\": 3 } }, { \"series\": \"mario\" }, { \"series\": \"mario\" } ] } ] }";
+        Query got = CBLiteMango.query(db, String.format("{ \"selector\": %s, \"fields\": [ \"_id\" ] }", selector));
+
+        Query expected = QueryBuilder
+                .select(SelectResult.expression(Meta.id))
+                .from(DataSource.database(db))
+                .where(Expression.property("rank").greaterThanOrEqualTo(Expression.intValue(3))
+                        .and(Expression.property("series").equalTo(Expression.string("mario"))));
+
+        assertEquals(expected.explain(), got.explain());
+
+        // contradictions compile to a constant false
+        String[] empty = {
+                "{ \"$and\": [ { \"rank\": 1 }, { \"rank\": { \"$gt\": 5 } } ] }",
+                "{ \"rank\": { \"$gt\": 5 }, \"$and\": [ { \"rank\": { \"$lte\": 5 } } ] }",
+                "{ \"_id\": \"mario\", \"$and\": [ { \"_id\": { \"$in\": [ \"luigi\", \"link\" ] } } ] }",
+                "{ \"_id\": { \"$in\": [] } }",
+        };
+        for (String s : empty) {
+            Query q = CBLiteMango.query(db, String.format("{ \"selector\": %s }", s));
+            assertEquals(0, q.execute().allResults().size());
+        }
+    }
+
+    @Test
+    public void lookup() throws Exception {
+        String req = "{ \"selector\": { \"$or\": [ { \"_id\": \"pikachu\" }, { \"_id\": { \"$in\": [ \"nobody\", \"mario\" ] } } ] }, \"fields\": [ \"_id\", \"rank\" ], \"sort\": [ \"_id\" ] }";
+        assertEquals(Arrays.asList("pikachu", "nobody", "mario"), Lookup.ids(new JSONObject(req)));
+
+        List<Map<String, Object>> rows = CBLiteMango.docs(db, req);
+        assertEquals(2, rows.size());
+        assertEquals("mario", rows.get(0).get("_id"));
+        assertEquals("pikachu", rows.get(1).get("_id"));
+        assertEquals(1, ((Number) rows.get(1).get("rank")).intValue());
+
+        // same rows as the query would return
+        String query = "{ \"selector\": { \"_id\": { \"$in\": [ \"pikachu\", \"mario\" ] }, \"rank\": { \"$gt\": 0 } }, \"fields\": [ \"_id\", \"rank\" ], \"sort\": [ \"_id\" ] }";
+        assertNull(Lookup.ids(new JSONObject(query)));
+        assertEquals(rows, CBLiteMango.docs(db, query));
+
+        // bad pages fail as they do for a query
+        String[] pages = { "\"skip\": -1", "\"limit\": -2", "\"limit\": 1.5", "\"skip\": \"1\"" };
+        for (String page : pages) {
+            try {
+                CBLiteMango.docs(db, "{ \"selector\": { \"_id\": \"mario\" }, " + page + " }");
+                fail(page);
+            } catch (Exception e) {
+                assertEquals("limit and skip must be non-negative integers", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void largeIn() throws Exception {
+        String[] requests = {
+                "{ \"selector\": { \"_id\": { \"$in\": [ \"ness\", \"mario\", \"puff\", \"link\", \"mario\", \"fox\", \"nobody\" ] } }, \"fields\": [ \"_id\" ], \"sort\": [ { \"rank\": \"desc\" }, { \"_id\": \"desc\" } ] }",
+                "{ \"selector\": { \"rank\": { \"$in\": [ 8, 1, 5, 4, 2, 9 ] } }, \"fields\": [ \"_id\", \"rank\" ], \"sort\": [ \"rank\", \"_id\" ], \"skip\": 1, \"limit\": 3 }",
+                "{ \"selector\": { \"_id\": { \"$nin\": [ \"ness\", \"mario\", \"puff\", \"link\" ] } }, \"fields\": [ \"_id\" ], \"sort\": [ \"_id\" ] }",
+        };
+        List<List<Map<String, Object>>> expected = new ArrayList<>();
+        for (String req : requests) {
+            expected.add(CBLiteMango.docs(db, req));
+        }
+        CBLiteMango.setLargeInLimits(2, 2);
+        try {
+            for (int i = 0; i < requests.length; i++) {
+                assertNotNull(LargeIn.of(new JSONObject(requests[i])));
+                assertEquals(expected.get(i), CBLiteMango.docs(db, requests[i]));
+
+                List<String> ids = new ArrayList<>();
+                List<Map<String, Object>> found = new ArrayList<>();
+                for (Result row : CBLiteMango.find(db, requests[i])) {
+                    ids.add(row.getString("_id"));
+                    found.add(row.toMap());
+                }
+                // without the sort and $nin columns LargeIn adds
+                assertEquals(expected.get(i), found);
+                List<String> want = new ArrayList<>();
+                for (Map<String, Object> row : expected.get(i)) {
+                    want.add((String) row.get("_id"));
+                }
+                assertEquals(want, ids);
+            }
+        } finally {
+            CBLiteMango.setLargeInLimits(1000, 500);
+        }
+    }
+
+    @Test
+    public void negatedContradiction() throws Exception {
+        String[] selectors = {
+                "{ \"$not\": { \"rank\": { \"$gt\": 5, \"$lt\": 3 } } }",
+                "{ \"$nor\": [ { \"rank\": { \"$gt\": 5, \"$lt\": 3 } } ] }",
+        };
+        for (String selector : selectors) {
+            List<String> ids = new ArrayList<>();
+            for (Result row : CBLiteMango.find(db, String.format("{ \"selector\": %s, \"fields\": [ \"_id\" ] }", selector))) {
+                ids.add(row.getString("_id"));
+            }
+            // every document with a rank; james, mary and william have none
+            assertEquals(selector, 12, ids.size());
+            assertFalse(selector, ids.contains("james"));
+
+            Predicate p = CBLiteMango.predicate(selector);
+            assertTrue(p.test(db.getDocument("mario")));
+            assertFalse(p.test(db.getDocument("james")));
+        }
+    }
+
+    @Test
+    public void predicate() throws Exception {
+        String[] selectors = {
+                "{ \"rank\": { \"$gte\": 2, \"$lt\": 8 } }",
+                "{ \"$not\": { \"rank\": 1 } }",
+                "{ \"_id\": { \"$nin\": [ \"pikachu\", \"puff\" ] }, \"series\": { \"$in\": [ \"mario\", \"pokemon\" ] } }",
+                "{ \"favorites\": { \"$elemMatch\": [ \"mario\" ] } }",
+                "{ \"favorites\": { \"$size\": 2 } }",
+                "{ \"$or\": [ { \"name\": { \"$regex\": \"^l\" } }, { \"debut\": { \"$gt\": 1990 } } ] }",
+                "{ \"rank\": { \"$exists\": false } }",
+        };
+        List<Result> all = CBLiteMango.find(db, "{ \"selector\": {}, \"fields\": [ \"_id\" ] }");
+        assertEquals(totalRecordCount, all.size());
+        for (String selector : selectors) {
+            List<String> expected = new ArrayList<>();
+            for (Result row : CBLiteMango.find(db, String.format("{ \"selector\": %s, \"fields\": [ \"_id\" ], \"sort\": [ \"_id\" ] }", selector))) {
+                expected.add(row.getString("_id"));
+            }
+            Predicate p = CBLiteMango.predicate(selector);
+            List<String> got = new ArrayList<>();
+            for (Result row : all) {
+                Document doc = db.getDocument(row.getString("_id"));
+                assertEquals(p.test(doc), p.test(doc.toMap()));
+                if (p.test(doc)) {
+                    got.add(doc.getId());
+                }
+            }
+            Collections.sort(got);
+            assertEquals(selector, expected, got);
+        }
+    }
+
+    @Test
+    public void elemMatchSelector() throws Exception {
+        db.save(new MutableDocument("lapras", Collections.unmodifiableMap(new HashMap<String, Object>() {{
+            put("name", "lapras");
+            put("moves", new MutableArray(Arrays.asList(new Object[]{ move("surf", 90), move("ice beam", 90) })));
+        }})));
+        db.save(new MutableDocument("psyduck", Collections.unmodifiableMap(new HashMap<String, Object>() {{
+            put("name", "psyduck");
+            put("moves", new MutableArray(Arrays.asList(new Object[]{ move("surf", 70), move("confusion", 90) })));
+        }})));
+        db.save(new MutableDocument("snorlax", Collections.unmodifiableMap(new HashMap<String, Object>() {{
+            put("name", "snorlax");
+            put("moves", new MutableArray(Arrays.asList(new Object[]{ move("rest", 0) })));
+            // named like a match variable, but a document property
+            put("__elem_match_moves__", "sleepy");
+        }})));
+
+        String[][] cases = {
+                // psyduck has both, on different moves
+                { "{ \"moves\": { \"$elemMatch\": { \"name\": \"surf\", \"power\": { \"$gt\": 80 } } } }", "lapras" },
+                { "{ \"moves\": { \"$allMatch\": { \"power\": { \"$gte\": 90 } } } }", "lapras" },
+                { "{ \"moves\": { \"$elemMatch\": { \"$or\": [ { \"name\": \"rest\" }, { \"power\": { \"$lt\": 75 } } ] } } }", "psyduck,snorlax" },
+                { "{ \"favorites\": { \"$elemMatch\": { \"$eq\": \"mario\" } } }", "james,william" },
+                { "{ \"favorites\": { \"$allMatch\": { \"$in\": [ \"mario\", \"pokemon\" ] } } }", "james,mary,william" },
+                { "{ \"$not\": { \"moves\": { \"$elemMatch\": { \"power\": { \"$gt\": 10, \"$lt\": 5 } } } } }", "lapras,psyduck,snorlax" },
+                { "{ \"__elem_match_moves__\": \"sleepy\", \"moves\": { \"$elemMatch\": { \"name\": \"rest\" } } }", "snorlax" },
+        };
+        for (String[] c : cases) {
+            String req = String.format("{ \"selector\": %s, \"fields\": [ \"_id\" ], \"sort\": [ \"_id\" ] }", c[0]);
+            List<String> ids = new ArrayList<>();
+            for (Result row : CBLiteMango.find(db, req)) {
+                ids.add(row.getString("_id"));
+            }
+            assertEquals(c[0], Arrays.asList(c[1].split(",")), ids);
+            assertEquals(c[0], CBLiteMango.query(db, req).explain(), CBLiteMango.query(db, req.getBytes("UTF-8")).explain());
+
+            // the same documents in memory
+            Predicate p = CBLiteMango.predicate(c[0]);
+            List<String> matched = new ArrayList<>();
+            for (Result row : CBLiteMango.find(db, "{ \"selector\": {}, \"fields\": [ \"_id\" ], \"sort\": [ \"_id\" ] }")) {
+                if (p.test(db.getDocument(row.getString("_id")))) {
+                    matched.add(row.getString("_id"));
+                }
+            }
+            assertEquals(c[0], ids, matched);
+        }
+
+        // literals inside the sub-selector are bound
+        PreparedQuery prepared = CBLiteMango.prepare(db, "{ \"selector\": { \"moves\": { \"$elemMatch\": { \"name\": \"surf\", \"power\": { \"$gt\": 80 } } } }, \"fields\": [ \"_id\" ] }");
+        List<Result> rows = prepared.executeRequest("{ \"selector\": { \"moves\": { \"$elemMatch\": { \"name\": \"surf\", \"power\": { \"$gt\": 60 } } } }, \"fields\": [ \"_id\" ] }").allResults();
+        assertEquals(2, rows.size());
+    }
+
+    private static Map<String, Object> move(String name, int power) {
+        Map<String, Object> move = new HashMap<>();
+        move.put("name", name);
+        move.put("power", power);
+        return move;
+    }
+
+    static class Fighter {
+        @Column("_id")
+        String id;
+        String name;
+        String series;
+        int rank;
+        Long debut;
+        List<Object> favorites;
+    }
+
+    static class NumberedName {
+        int name;
+    }
+
+    static class SeriesCount {
+        String series;
+        long n;
+    }
+
+    @Test
+    public void typedFind() throws Exception {
+        List<Fighter> fighters = CBLiteMango.find(db, "{ \"selector\": { \"series\": \"mario\" }, \"fields\": [ \"_id\", \"name\", \"rank\", \"debut\" ], \"sort\": [ \"rank\" ] }", Fighter.class);
+        assertEquals(4, fighters.size());
+        assertEquals("mario", fighters.get(0).id);
+        assertEquals("mario", fighters.get(0).name);
+        assertEquals(5, fighters.get(0).rank);
+        assertEquals(Long.valueOf(1981), fighters.get(0).debut);
+        assertEquals("luigi", fighters.get(3).id);
+        assertNull(fighters.get(3).favorites);
+
+        // whole documents, read by property name
+        fighters = CBLiteMango.find(db, new JSONObject("{ \"selector\": { \"age\": { \"$gt\": 20 } }, \"sort\": [ \"age\" ] }"), Fighter.class);
+        assertEquals(2, fighters.size());
+        assertEquals("Mary", fighters.get(0).name);
+        assertNull(fighters.get(0).id);
+        assertEquals(Arrays.asList((Object) "pokemon"), fighters.get(0).favorites);
+
+        // columns in an order their names don't hash in
+        fighters = CBLiteMango.find(db, "{ \"selector\": { \"_id\": \"falcon\" }, \"fields\": [ \"series\", \"debut\", \"_id\", \"rank\", \"name\" ] }", Fighter.class);
+        assertEquals(1, fighters.size());
+        assertEquals("f-zero", fighters.get(0).series);
+        assertEquals(Long.valueOf(1990), fighters.get(0).debut);
+        assertEquals("falcon", fighters.get(0).id);
+        assertEquals(4, fighters.get(0).rank);
+        assertEquals("captain falcon", fighters.get(0).name);
+
+        List<SeriesCount> counts = CBLiteMango.find(db, "{ \"selector\": { \"series\": { \"$in\": [ \"mario\", \"pokemon\" ] } }, \"aggregate\": { \"n\": { \"$count\": \"*\" } }, \"group_by\": [ \"series\" ], \"sort\": [ \"series\" ] }", SeriesCount.class);
+        assertEquals(2, counts.size());
+        assertEquals("mario", counts.get(0).series);
+        assertEquals(4, counts.get(0).n);
+        assertEquals(2, counts.get(1).n);
+
+        try {
+            CBLiteMango.find(db, "{ \"selector\": { \"_id\": \"mario\" }, \"fields\": [ \"name\" ] }", NumberedName.class);
+            fail("a string into an int");
+        } catch (Exception e) {
+            assertEquals("Can't read String into NumberedName.name", e.getMessage());
+        }
+    }
+
+    @Test
+    public void materializedView() throws Exception {
+        String req = "{ \"selector\": { \"series\": \"mario\" }, \"fields\": [ \"_id\", \"rank\" ], \"sort\": [ \"rank\" ] }";
+        MaterializedView view = CBLiteMango.materialize(db, req);
+        try {
+            assertEquals(CBLiteMango.docs(db, req), view.getRows());
+            assertEquals(4, view.getCount());
+
+            // one added, one moved out, one deleted
+            db.save(new MutableDocument("peach", Collections.unmodifiableMap(new HashMap<String, Object>() {{
+                put("name", "peach");
+                put("rank", 3);
+                put("series", "mario");
+            }})));
+            db.save(db.getDocument("luigi").toMutable().setValue("series", "luigi's mansion"));
+            db.delete(db.getDocument("mario"));
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (view.contains("mario") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(CBLiteMango.docs(db, req), view.getRows());
+            assertTrue(view.contains("peach"));
+            assertFalse(view.contains("luigi"));
+            assertEquals("peach", view.getRows().get(0).get("_id"));
+        } finally {
+            view.close();
+        }
+    }
+
+    @Test
+    public void resultCache() throws Exception {
+        String mario = "{ \"selector\": { \"series\": \"mario\" }, \"fields\": [ \"_id\", \"rank\" ], \"sort\": [ \"rank\" ] }";
+        String pikachu = "{ \"selector\": { \"_id\": \"pikachu\" } }";
+        ResultCache rc = new ResultCache(1 << 20);
+        CBLiteMango.setResultCache(rc);
+        try {
+            List<Map<String, Object>> rows = CBLiteMango.docs(db, mario);
+            assertSame(rows, CBLiteMango.docs(db, mario));
+            CBLiteMango.docs(db, pikachu);
+            assertEquals(2, rc.size());
+            assertEquals(1, rc.getHits());
+            assertTrue(rc.getBytes() > 0);
+
+            // drops the lookup only: pikachu isn't and doesn't become a mario row
+            db.save(db.getDocument("pikachu").toMutable().setValue("rank", 2));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (rc.size() > 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(1, rc.getInvalidations());
+            assertSame(rows, CBLiteMango.docs(db, mario));
+
+            db.save(db.getDocument("luigi").toMutable().setValue("rank", 1));
+            deadline = System.currentTimeMillis() + 5000;
+            while (rc.size() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            rows = CBLiteMango.docs(db, mario);
+            assertEquals("luigi", rows.get(0).get("_id"));
+            assertEquals(4, rows.size());
+            assertEquals(2.0 / 5, rc.getHitRate(), 1e-9);
+            try {
+                rows.get(0).put("rank", 0);
+                fail("cached rows are shared");
+            } catch (UnsupportedOperationException e) {
+                assertEquals(1, ((Number) CBLiteMango.docs(db, mario).get(0).get("rank")).intValue());
+            }
+
+            // deleting a row before the page shifts it
+            String skipped = "{ \"selector\": { \"series\": \"mario\" }, \"fields\": [ \"_id\" ], \"sort\": [ \"_id\" ], \"skip\": 1 }";
+            assertEquals("luigi", CBLiteMango.docs(db, skipped).get(0).get("_id"));
+            db.delete(db.getDocument("dk"));
+            deadline = System.currentTimeMillis() + 5000;
+            while (CBLiteMango.docs(db, skipped).get(0).get("_id").equals("luigi") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals("mario", CBLiteMango.docs(db, skipped).get(0).get("_id"));
+        } finally {
+            CBLiteMango.setResultCache(null);
+        }
+
+        // rows larger than the whole cache aren't kept
+        rc = new ResultCache(64);
+        CBLiteMango.setResultCache(rc);
+        try {
+            CBLiteMango.docs(db, mario);
+            assertEquals(0, rc.size());
+            assertEquals(0, rc.getBytes());
+        } finally {
+            CBLiteMango.setResultCache(null);
+        }
+    }
+
+    @Test
+    public void liveQuery() throws Exception {
+        final List<LiveQuery.Diff> diffs = new CopyOnWriteArrayList<>();
+        LiveQuery live = CBLiteMango.live(db, "{ \"selector\": { \"series\": \"mario\" }, \"fields\": [ \"rank\" ], \"sort\": [ \"rank\" ] }", 200, null, new LiveQuery.Listener() {
+            @Override
+            public void onChange(LiveQuery.Diff diff) {
+                diffs.add(diff);
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                fail(error.toString());
+            }
+        });
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (diffs.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(1, diffs.size());
+            assertEquals(Arrays.asList("mario", "yoshi", "dk", "luigi"), diffs.get(0).getKeys());
+            assertEquals(4, diffs.get(0).getInserted().size());
+            assertEquals(11, ((Number) diffs.get(0).getRow("luigi").get("rank")).intValue());
+
+            // a burst of writes arrives as one diff
+            db.save(db.getDocument("luigi").toMutable().setValue("rank", 2));
+            db.save(db.getDocument("dk").toMutable().setValue("series", "donkey kong"));
+            db.save(new MutableDocument("peach", Collections.unmodifiableMap(new HashMap<String, Object>() {{
+                put("rank", 3);
+                put("series", "mario");
+            }})));
+            deadline = System.currentTimeMillis() + 5000;
+            while (diffs.size() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            Thread.sleep(500);
+            List<String> inserted = new ArrayList<>();
+            List<String> removed = new ArrayList<>();
+            List<String> changed = new ArrayList<>();
+            for (LiveQuery.Diff diff : diffs.subList(1, diffs.size())) {
+                inserted.addAll(diff.getInserted());
+                removed.addAll(diff.getRemoved());
+                changed.addAll(diff.getChanged());
+            }
+            assertThat(diffs.size(), lessThanOrEqualTo(3));
+            assertEquals(Collections.singletonList("peach"), inserted);
+            assertEquals(Collections.singletonList("dk"), removed);
+            assertEquals(Collections.singletonList("luigi"), changed);
+            assertEquals(Arrays.asList("luigi", "peach", "mario", "yoshi"), diffs.get(diffs.size() - 1).getKeys());
+        } finally {
+            live.close();
+        }
+    }
+
+    @Test
+    public void async() throws Exception {
+        String req = "{ \"selector\": { \"series\": \"mario\" }, \"fields\": [ \"_id\" ], \"sort\": [ \"_id\" ] }";
+        List<Result> rows = CBLiteMango.findAsync(db, req).get(5, TimeUnit.SECONDS);
+        assertEquals(4, rows.size());
+        assertEquals("dk", rows.get(0).getString("_id"));
+
+        // two rows at a time, cancelled after the first three
+        final List<String> seen = new CopyOnWriteArrayList<>();
+        final CountDownLatch first = new CountDownLatch(2);
+        final boolean[] completed = {false};
+        RowStream stream = CBLiteMango.stream(db, req, new RowStream.Subscriber() {
+            @Override
+            public void onNext(Result row) {
+                seen.add(row.getString("_id"));
+                first.countDown();
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                fail(error.toString());
+            }
+
+            @Override
+            public void onComplete() {
+                completed[0] = true;
+            }
+        });
+        Thread.sleep(100);
+        assertTrue(seen.isEmpty());
+        stream.request(2);
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(Arrays.asList("dk", "luigi"), seen);
+
+        stream.request(1);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (seen.size() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        stream.cancel();
+        stream.request(10);
+        Thread.sleep(100);
+        assertEquals(Arrays.asList("dk", "luigi", "mario"), seen);
+        assertFalse(completed[0]);
+
+        // a full executor ends the stream once
+        final List<Throwable> errors = new CopyOnWriteArrayList<>();
+        RowStream rejected = new RowStream(CBLiteMango.compile(db, req, null), new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException("full");
+            }
+        }, new RowStream.Subscriber() {
+            @Override
+            public void onNext(Result row) {
+                fail("no row should be read");
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                errors.add(error);
+            }
+
+            @Override
+            public void onComplete() {
+                fail("a rejected stream doesn't complete");
+            }
+        });
+        rejected.request(1);
+        rejected.request(1);
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0) instanceof RejectedExecutionException);
+    }
+
+    @Test
+    public void singleFlight() throws Exception {
+        final String req = "{ \"selector\": { \"series\": \"mario\" }, \"fields\": [ \"_id\" ] }";
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        // holds the first execution open until the others have arrived
+        MetricsListener hold = new MetricsListener() {
+            @Override
+            public void onQuery(QueryMetrics metrics) {
+                entered.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        SingleFlight flight = new SingleFlight();
+        CBLiteMango.setSingleFlight(flight);
+        CBLiteMango.addMetricsListener(hold);
+        try {
+            final List<List<Result>> results = new CopyOnWriteArrayList<>();
+            List<Thread> threads = new ArrayList<>();
+            // the same request as other text and as a JSONObject
+            final String respaced = "{\"fields\":[\"_id\"],\"selector\":{\"series\":\"mario\"}}";
+            for (int i = 0; i < 4; i++) {
+                final int variant = i;
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (variant == 2) {
+                                results.add(CBLiteMango.find(db, new JSONObject(req)));
+                            } else {
+                                results.add(CBLiteMango.find(db, (variant == 3) ? respaced : req));
+                            }
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+                threads.add(t);
+                t.start();
+                if (i == 0) {
+                    assertTrue(entered.await(5, TimeUnit.SECONDS));
+                }
+            }
+            Thread.sleep(100);
+            release.countDown();
+            for (Thread t : threads) {
+                t.join(5000);
+            }
+            assertEquals(4, results.size());
+            for (List<Result> rows : results) {
+                assertSame(results.get(0), rows);
+            }
+            assertEquals(4, results.get(0).size());
+            assertEquals(3, flight.getShared());
+            assertEquals(0, flight.getInFlight());
+        } finally {
+            CBLiteMango.removeMetricsListener(hold);
+            CBLiteMango.setSingleFlight(null);
+        }
+
+        // an Error in the leader reaches the waiters too
+        final SingleFlight failing = new SingleFlight();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final Throwable[] thrown = new Throwable[2];
+        Thread leader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    failing.run(db, req, new Callable<List<Result>>() {
+                        @Override
+                        public List<Result> call() throws Exception {
+                            started.countDown();
+                            proceed.await(5, TimeUnit.SECONDS);
+                            throw new OutOfMemoryError("boom");
+                        }
+                    });
+                } catch (Throwable t) {
+                    thrown[0] = t;
+                }
+            }
+        });
+        leader.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    failing.run(db, req, null);
+                } catch (Throwable t) {
+                    thrown[1] = t;
+                }
+            }
+        });
+        waiter.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (failing.getShared() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        proceed.countDown();
+        leader.join(5000);
+        waiter.join(5000);
+        assertTrue(thrown[0] instanceof OutOfMemoryError);
+        assertSame(thrown[0], thrown[1].getCause());
+        assertEquals(0, failing.getInFlight());
+    }
+
+    @Test
+    public void queryCache() throws Exception {
+        QueryCache cache = new QueryCache(2);
+        CBLiteMango.setQueryCache(cache);
+        try {
+            Query first = CBLiteMango.query(db, "{ \"selector\": { \"series\": \"mario\", \"rank\": { \"$lt\": 8 } }, \"fields\": [ \"_id\" ] }");
+            Query reordered = CBLiteMango.query(db, "{\"fields\":[\"_id\"],\"selector\":{\"rank\":{\"$lt\":8},\"series\":\"mario\"}}");
+            assertSame(first, reordered);
+            assertEquals(1, cache.getMisses());
+            assertEquals(1, cache.getHits());
+
+            // exact same text is served without parsing
+            CBLiteMango.query(db, "{\"fields\":[\"_id\"],\"selector\":{\"rank\":{\"$lt\":8},\"series\":\"mario\"}}");
+            assertEquals(2, cache.getHits());
+
+            long found = 0;
+            for (Result row : first.execute()) {
+                found++;
+            }
+            assertEquals(3, found);
+
+            CBLiteMango.query(db, "{ \"selector\": { \"_id\": \"mario\" } }");
+            CBLiteMango.query(db, "{ \"selector\": { \"_id\": \"luigi\" } }");
+            assertEquals(1, cache.getEvictions());
+            assertEquals(2, cache.size(db));
+
+            CBLiteMango.invalidate(db);
+            assertEquals(0, cache.size(db));
+        } finally {
+            CBLiteMango.setQueryCache(null);
+        }
+    }
+
+    @Test
+    public void prepared() throws Exception {
+        PreparedQuery prepared = CBLiteMango.prepare(db, "{ \"selector\": { \"series\": \"mario\", \"rank\": { \"$gt\": 5 } }, \"fields\": [ \"_id\" ] }");
+        assertEquals(2, prepared.size());
+
+        Query expected = QueryBuilder
+                .select(SelectResult.expression(Meta.id))
+                .from(DataSource.database(db))
+                .where(Expression.property("rank").greaterThan(Expression.parameter("p0"))
+                        .and(Expression.property("series").equalTo(Expression.parameter("p1"))));
+
+        assertEquals(expected.explain(), prepared.getQuery().explain());
+
+        long found = 0;
+        for (Result row : prepared.executeRequest("{ \"selector\": { \"series\": \"mario\", \"rank\": { \"$gt\": 6 } }, \"fields\": [ \"_id\" ] }")) {
+            assertThat(row.getString("_id"), anyOf(is("dk"), is("luigi")));
+            found++;
+        }
+        assertEquals(2, found);
+
+        found = 0;
+        for (Result row : prepared.execute(5, "pokemon")) {
+            assertEquals("puff", row.getString("_id"));
+            found++;
+        }
+        assertEquals(1, found);
+
+        // preparing the shape again leaves the first one's values alone
+        PreparedQuery other = CBLiteMango.prepare(db, "{ \"selector\": { \"series\": \"pokemon\", \"rank\": { \"$gt\": 5 } }, \"fields\": [ \"_id\" ] }");
+        assertEquals(1, other.execute().allResults().size());
+        List<String> ids = new ArrayList<>();
+        for (Result row : prepared.execute()) {
+            ids.add(row.getString("_id"));
+        }
+        List<String> want = new ArrayList<>();
+        for (Result row : CBLiteMango.find(db, "{ \"selector\": { \"series\": \"mario\", \"rank\": { \"$gt\": 5 } }, \"fields\": [ \"_id\" ] }")) {
+            want.add(row.getString("_id"));
+        }
+        assertEquals(want, ids);
+
+        try {
+            prepared.executeRequest("{ \"selector\": { \"series\": \"mario\" }, \"fields\": [ \"_id\" ] }");
+            fail("shape mismatch should be rejected");
+        } catch (Exception e) {
+            // expected
+        }
+
+        // a lone String is a value, not a request
+        PreparedQuery series = CBLiteMango.prepare(db, "{ \"selector\": { \"series\": \"mario\" }, \"fields\": [ \"_id\", \"series\" ] }");
+        found = 0;
+        for (Result row : series.execute("pokemon")) {
+            assertEquals("pokemon", row.getString("series"));
+            found++;
+        }
+        assertTrue(found > 0);
+    }
+
+    @Test
+    public void regexPrefix() throws Exception {
+        assertEquals("pika", RegexPrefix.of("^pika").prefix);
+        assertTrue(RegexPrefix.of("^pika").exact);
+        assertTrue(RegexPrefix.of("^pika.*").exact);
+        assertEquals("pik", RegexPrefix.of("^pika?").prefix);
+        assertFalse(RegexPrefix.of("^pika?").exact);
+        assertEquals("a.b", RegexPrefix.of("^a\\.b\\d").prefix);
+        assertEquals("pika", RegexPrefix.of("(?i)^PIKA").prefix);
+        assertFalse(RegexPrefix.of("(?i)^PIKA").exact);
+        assertEquals("ab", RegexPrefix.of("^ab(c|d)").prefix);
+        assertNull(RegexPrefix.of("pika"));
+        assertNull(RegexPrefix.of("^ab|cd"));
+        assertNull(RegexPrefix.of("^.ab"));
+
+        Query got = CBLiteMango.query(db, "{ \"selector\": { \"name\": { \"$regex\": \"^pika\" } }, \"fields\": [ \"_id\" ] }");
+        Query expected = QueryBuilder
+                .select(SelectResult.expression(Meta.id))
+                .from(DataSource.database(db))
+                .where(Expression.property("name").greaterThanOrEqualTo(Expression.string("pika"))
+                        .and(Expression.property("name").lessThan(Expression.string("pika\uFFFF"))));
+        assertEquals(expected.explain(), got.explain());
+
+        // under $not the pattern stays: the range would match numbers
+        assertEquals("$not(\"name\":{$regex:\"^l\"})", Selector.parse(new JSONObject("{ \"$not\": { \"name\": { \"$regex\": \"^l\" } } }")).optimize().toString());
+
+        String[] patterns = {"^l", "^li", "^l.*", "^lu.gi", "(?i)^MA", "^do+", "^l|d", "\\Apika", "^dk$"};
+        List<Result> all = CBLiteMango.find(db, "{ \"selector\": {}, \"fields\": [ \"_id\", \"name\" ] }");
+        for (String pattern : patterns) {
+            List<String> expectedIds = new ArrayList<>();
+            Pattern compiled = Pattern.compile(pattern);
+            for (Result row : all) {
+                String name = row.getString("name");
+                if (name != null && compiled.matcher(name).find()) {
+                    expectedIds.add(row.getString("_id"));
+                }
+            }
+            Collections.sort(expectedIds);
+            List<String> gotIds = new ArrayList<>();
+            JSONObject req = new JSONObject()
+                    .put("selector", new JSONObject().put("name", new JSONObject().put("$regex", pattern)))
+                    .put("fields", new JSONArray().put("_id"))
+                    .put("sort", new JSONArray().put("_id"));
+            for (Result row : CBLiteMango.find(db, req)) {
+                gotIds.add(row.getString("_id"));
+            }
+            assertEquals(pattern, expectedIds, gotIds);
+        }
+
+        CBLiteMango.createIndex(db, "{ \"index\": { \"fields\": [ \"name\" ] } }");
+        QueryPlan plan = CBLiteMango.explain(db, "{ \"selector\": { \"name\": { \"$regex\": \"^pika\" } } }");
+        assertFalse(plan.isScan());
+        assertEquals("mango-name", plan.getPredicates().get("name"));
+
+        CBLiteMango.createIndex(db, "{ \"index\": { \"fields\": [ { \"$lower\": \"name\" } ] } }");
+        plan = CBLiteMango.explain(db, "{ \"selector\": { \"name\": { \"$regex\": \"(?i)^PIKA\" } } }");
+        assertFalse(plan.isScan());
+        assertEquals(Arrays.asList("mango-lower(name)"), plan.getIndexes());
+
+        // a property that only looks like one is indexed as itself
+        db.save(db.getDocument("pikachu").toMutable().setValue("lower(kind)", "mouse"));
+        CBLiteMango.createIndex(db, "{ \"index\": { \"fields\": [ \"lower(kind)\" ] }, \"name\": \"literal\" }");
+        plan = CBLiteMango.explain(db, "{ \"selector\": { \"lower(kind)\": \"mouse\" } }");
+        assertEquals(Arrays.asList("literal"), plan.getIndexes());
+        assertEquals(1, CBLiteMango.find(db, "{ \"selector\": { \"lower(kind)\": \"mouse\" } }").size());
+    }
+
+    @Test
+    public void text() throws Exception {
+        JSONObject created = CBLiteMango.createIndex(db, "{ \"index\": { \"fields\": [ \"name\", { \"name\": \"series\", \"type\": \"string\" } ] }, \"type\": \"text\" }");
+        assertEquals("mango-text", created.getString("name"));
+        assertEquals("text", CBLiteMango.listIndexes(db).getJSONArray("indexes").getJSONObject(1).getString("type"));
+
+        String req = "{ \"selector\": { \"$text\": \"mario\" }, \"fields\": [ \"_id\", \"_rank\" ], \"sort\": [ { \"_rank\": \"desc\" } ] }";
+        List<Result> rows = CBLiteMango.find(db, req);
+        assertEquals(4, rows.size());
+        // in both name and series
+        assertEquals("mario", rows.get(0).getString("_id"));
+        assertTrue(rows.get(0).contains("_rank"));
+        assertEquals(CBLiteMango.query(db, req).explain(), CBLiteMango.query(db, req.getBytes("UTF-8")).explain());
+
+        List<String> ids = new ArrayList<>();
+        for (Result row : CBLiteMango.find(db, "{ \"selector\": { \"$text\": \"mario\", \"rank\": { \"$gt\": 6 } }, \"fields\": [ \"_id\" ], \"sort\": [ \"_id\" ] }")) {
+            ids.add(row.getString("_id"));
+        }
+        assertEquals(Arrays.asList("dk", "luigi"), ids);
+
+        CBLiteMango.createIndex(db, "{ \"index\": { \"fields\": [ \"name\" ] }, \"name\": \"names\", \"type\": \"text\" }");
+        rows = CBLiteMango.find(db, "{ \"selector\": { \"$text\": { \"$search\": \"kong\", \"$index\": \"names\" } }, \"fields\": [ \"_id\" ] }");
+        assertEquals(1, rows.size());
+        assertEquals("dk", rows.get(0).getString("_id"));
+        // known as text by its definition, not its name
+        JSONArray listed = CBLiteMango.listIndexes(db).getJSONArray("indexes");
+        for (int i = 1; i < listed.length(); i++) {
+            assertEquals("text", listed.getJSONObject(i).getString("type"));
+        }
+
+        try {
+            CBLiteMango.query(db, "{ \"selector\": { \"series\": \"mario\" }, \"fields\": [ \"_rank\" ] }");
+            fail("_rank without $text");
+        } catch (Exception e) {
+            assertEquals("_rank needs a $text selector", e.getMessage());
+        }
+    }
+
+    @Test
+    public void aggregate() throws Exception {
+        assertEquals(4, CBLiteMango.count(db, "{ \"series\": \"mario\" }"));
+        assertEquals(0, CBLiteMango.count(db, "{ \"rank\": { \"$gt\": 100 } }"));
+
+        String req = "{ \"selector\": { \"debut\": { \"$gt\": 0 } }, \"aggregate\": { \"n\": { \"$count\": \"*\" }, \"top\": { \"$max\": \"rank\" }, \"total\": { \"$sum\": \"rank\" } }, \"group_by\": [ \"series\" ], \"having\": { \"n\": { \"$gt\": 1 } }, \"sort\": [ { \"n\": \"desc\" } ] }";
+        List<Result> rows = CBLiteMango.find(db, req);
+        assertEquals(2, rows.size());
+        assertEquals("mario", rows.get(0).getString("series"));
+        assertEquals(4, rows.get(0).getLong("n"));
+        assertEquals(11, rows.get(0).getLong("top"));
+        assertEquals(29, rows.get(0).getLong("total"));
+        assertEquals("pokemon", rows.get(1).getString("series"));
+        assertEquals(2, rows.get(1).getLong("n"));
+        assertEquals(9, rows.get(1).getLong("total"));
+        // not shared with the query cache entry of another having
+        assertNotEquals(CBLiteMango.fingerprint(new JSONObject(req)), CBLiteMango.fingerprint(new JSONObject(req).put("having", new JSONObject("{ \"n\": { \"$gt\": 2 } }"))));
+
+        rows = CBLiteMango.find(db, "{ \"selector\": { \"series\": \"mario\" }, \"aggregate\": { \"avg\": { \"$avg\": \"rank\" } } }");
+        assertEquals(1, rows.size());
+        assertEquals(7.25, rows.get(0).getDouble("avg"), 0.001);
+
+        try {
+            CBLiteMango.query(db, "{ \"selector\": { \"series\": \"mario\" }, \"fields\": [ \"_id\" ], \"aggregate\": { \"n\": { \"$count\": \"*\" } } }");
+            fail("fields with aggregate");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().startsWith("fields can't be combined with aggregate"));
+        }
+    }
+
+    @Test
+    public void streaming() throws Exception {
+        String[] requests = {
+                "{ \"selector\": { \"_id\": \"pikachu\" }, \"fields\": [ \"_id\" ] }",
+                "{ \"fields\": [ \"_id\", \"rank\" ], \"selector\": { \"$and\": [ { \"_id\": { \"$in\": [ \"pikachu\", \"puff\" ] } }, { \"rank\": { \"$lt\": 8 } } ] } }",
+                "{ \"selector\": { \"_id\": { \"$gt\": null }, \"$nor\": [ { \"_id\": \"mario\" }, { \"_id\": \"luigi\" } ] }, \"ignored\": { \"a\": [ 1, 2 ] } }",
+                "{ \"selector\": { \"favorites\": { \"$elemMatch\": [ \"mario\" ] }, \"name\": { \"$regex\": \"^W\" } } }",
+                "{ \"aggregate\": { \"n\": { \"$count\": \"*\" } }, \"group_by\": [ \"series\" ], \"selector\": { \"rank\": { \"$gt\": 2 } }, \"sort\": [ { \"n\": \"desc\" } ] }",
+        };
+        for (String req : requests) {
+            Query expected = CBLiteMango.query(db, req);
+            Query got = CBLiteMango.query(db, req.getBytes("UTF-8"));
+            assertEquals(expected.explain(), got.explain());
+        }
+
+        // rejected like new JSONObject() rejects them
+        String[] invalid = {
+                "{ \"selector\": { \"_id\": \"mario\" } } garbage",
+                "{ \"selector\": { \"_id\": \"mario\" } } { \"selector\": {} }",
+                "{ \"selector\": { \"_id\": { \"$in\": \"mario\" } } }",
+        };
+        for (String req : invalid) {
+            try {
+                CBLiteMango.query(db, req.getBytes("UTF-8"));
+                fail(req);
+            } catch (Exception e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void metrics() throws Exception {
+        final List<QueryMetrics> seen = new ArrayList<>();
+        MetricsListener listener = new MetricsListener() {
+            @Override
+            public void onQuery(QueryMetrics metrics) {
+                seen.add(metrics);
+            }
+        };
+        CBLiteMango.addMetricsListener(listener);
+        try {
+            List<Result> rows = CBLiteMango.find(db, "{ \"selector\": { \"series\": \"mario\" }, \"fields\": [ \"_id\" ] }");
+            CBLiteMango.query(db, "{ \"selector\": { \"series\": \"zelda\" }, \"fields\": [ \"_id\" ] }");
+        } finally {
+            CBLiteMango.removeMetricsListener(listener);
+        }
+        CBLiteMango.query(db, "{ \"selector\": { \"series\": \"kirby\" } }");
+
+        assertEquals(2, seen.size());
+        QueryMetrics found = seen.get(0);
+        assertEquals(4, found.getRows());
+        assertThat(found.getParseNanos(), greaterThan(0L));
+        assertThat(found.getBuildNanos(), greaterThan(0L));
+        assertThat(found.getExecuteNanos(), greaterThan(0L));
+        assertEquals("{\"fields\":[\"_id\"],\"selector\":{\"series\":?}}", found.getShape());
+
+        QueryMetrics compiled = seen.get(1);
+        assertEquals(-1, compiled.getRows());
+        assertEquals(0, compiled.getExecuteNanos());
+        assertEquals(found.getShape(), compiled.getShape());
+    }
+
+    @Test
+    public void indexes() throws Exception {
+        JSONObject created = CBLiteMango.createIndex(db, "{ \"index\": { \"fields\": [ \"series\", { \"rank\": \"desc\" } ] }, \"name\": \"series-rank\", \"type\": \"json\" }");
+        assertEquals("created", created.getString("result"));
+        assertEquals("series-rank", created.getString("name"));
+        assertEquals(Arrays.asList("series-rank"), db.getIndexes());
+
+        JSONObject again = CBLiteMango.createIndex(db, "{ \"index\": { \"fields\": [ \"series\", \"rank\" ] }, \"name\": \"series-rank\" }");
+        assertEquals("exists", again.getString("result"));
+
+        JSONObject unnamed = CBLiteMango.createIndex(db, "{ \"index\": { \"fields\": [ \"_id\", \"debut\" ] } }");
+        assertEquals("mango-debut", unnamed.getString("name"));
+
+        JSONObject listed = CBLiteMango.listIndexes(db);
+        assertEquals(3, listed.getInt("total_rows"));
+        assertEquals("_all_docs", listed.getJSONArray("indexes").getJSONObject(0).getString("name"));
+        assertEquals("json", listed.getJSONArray("indexes").getJSONObject(1).getString("type"));
+        assertEquals("json", listed.getJSONArray("indexes").getJSONObject(2).getString("type"));
+
+        Query got = CBLiteMango.query(db, "{ \"selector\": { \"series\": \"mario\", \"rank\": { \"$gt\": 5 } } }");
+        assertThat(got.explain(), containsString("series-rank"));
+
+        assertTrue(CBLiteMango.deleteIndex(db, "series-rank").getBoolean("ok"));
+        assertEquals(Arrays.asList("mango-debut"), db.getIndexes());
+    }
+
+    @Test
+    public void indexAdvisor() throws Exception {
+        IndexAdvisor advisor = new IndexAdvisor();
+        String cached = "{ \"selector\": { \"series\": \"mario\", \"rank\": { \"$gt\": 0 } }, \"sort\": [ \"name\" ] }";
+        CBLiteMango.setResultCache(new ResultCache(1 << 20));
+        CBLiteMango.docs(db, cached);
+        CBLiteMango.addMetricsListener(advisor);
+        try {
+            // answered from the cache, without a plan to check
+            CBLiteMango.docs(db, cached);
+            CBLiteMango.setResultCache(null);
+            for (int i = 0; i < 3; i++) {
+                CBLiteMango.find(db, "{ \"selector\": { \"series\": \"mario\", \"rank\": { \"$gt\": " + i + " } }, \"sort\": [ \"name\" ] }");
+            }
+            CBLiteMango.find(db, "{ \"selector\": { \"$or\": [ { \"series\": \"mario\" }, { \"rank\": 1 } ] } }");
+        } finally {
+            CBLiteMango.removeMetricsListener(advisor);
+            CBLiteMango.setResultCache(null);
+        }
+
+        List<IndexAdvisor.Advice> advice = advisor.recommendations();
+        assertEquals(1, advice.size());
+        assertEquals(Arrays.asList("series", "name", "rank"), advice.get(0).getFields());
+        assertEquals(4, advice.get(0).getCount());
+        assertTrue(advice.get(0).isScan());
+
+        CBLiteMango.createIndex(db, advice.get(0).toIndex());
+        Query got = CBLiteMango.query(db, "{ \"selector\": { \"series\": \"mario\", \"rank\": { \"$gt\": 1 } } }");
+        assertFalse(got.explain().contains("SCAN TABLE"));
+    }
+
+    @Test
+    public void explain() throws Exception {
+        String req = "{ \"selector\": { \"series\": \"mario\", \"rank\": { \"$gt\": 1 } }, \"sort\": [ \"name\" ] }";
+        QueryPlan plan = CBLiteMango.explain(db, req);
+        assertTrue(plan.isScan());
+        assertTrue(plan.isTempSort());
+        assertTrue(plan.getIndexes().isEmpty());
+        assertEquals(Arrays.asList("series", "rank"), new ArrayList<>(plan.getPredicates().keySet()));
+        assertNull(plan.getPredicates().get("series"));
+        assertTrue(plan.getSql().startsWith("SELECT"));
+
+        CBLiteMango.createIndex(db, "{ \"index\": { \"fields\": [ \"series\" ] } }");
+        plan = CBLiteMango.explain(db, req);
+        assertFalse(plan.isScan());
+        assertEquals(Arrays.asList("mango-series"), plan.getIndexes());
+        assertEquals("mango-series", plan.getPredicates().get("series"));
+        assertNull(plan.getPredicates().get("rank"));
+    }
+
+    @Test
+    public void slowQueryLog() throws Exception {
+        SlowQueryLog log = new SlowQueryLog(0, 2);
+        CBLiteMango.addMetricsListener(log);
+        try {
+            for (int i = 0; i < 3; i++) {
+                CBLiteMango.find(db, "{ \"selector\": { \"rank\": { \"$gt\": " + i + " } } }");
+            }
+        } finally {
+            CBLiteMango.removeMetricsListener(log);
+        }
+        List<SlowQueryLog.Entry> entries = log.getEntries();
+        assertEquals(2, entries.size());
+        assertEquals("{\"selector\":{\"rank\":{\"$gt\":?}}}", entries.get(0).getShape());
+        assertTrue(entries.get(1).getNanos() > 0);
+        assertTrue(entries.get(1).getPlan().isScan());
+        assertEquals(Arrays.asList("rank"), new ArrayList<>(entries.get(1).getPlan().getPredicates().keySet()));
+
+        // nothing under the threshold
+        log = new SlowQueryLog(TimeUnit.HOURS.toNanos(1), 2);
+        CBLiteMango.addMetricsListener(log);
+        try {
+            CBLiteMango.find(db, "{ \"selector\": { \"rank\": { \"$gt\": 1 } } }");
+        } finally {
+            CBLiteMango.removeMetricsListener(log);
+        }
+        assertTrue(log.getEntries().isEmpty());
+    }
+
+    @Test
+    public void sortLimitSkip() throws Exception {
+        String selector = "{ \"rank\": { \"$gt\": null } }";
+        String fields = "[ \"_id\", \"rank\" ]";
+        String sort = "[ { \"rank\": \"desc\" }, \"_id\" ]";
+        Query got = CBLiteMango.query(db, String.format("{ \"selector\": %s, \"fields\": %s, \"sort\": %s, \"limit\": 3, \"skip\": 1 }", selector, fields, sort));
+
+        Query expected = QueryBuilder
+                .select(SelectResult.expression(Meta.id).as("_id"), SelectResult.property("rank"))
+                .from(DataSource.database(db))
+                .where(Expression.property("rank").notNullOrMissing())
+                .orderBy(Ordering.property("rank").descending(), Ordering.expression(Meta.id).ascending())
+                .limit(Expression.intValue(3), Expression.intValue(1));
+
+        assertEquals(expected.explain(), got.explain());
+
+        List<String> ids = new ArrayList<>();
+        for (Result row : got.execute()) {
+            ids.add(row.getString("_id"));
+        }
+        assertEquals(Arrays.asList("luigi", "link", "ness"), ids);
+
+        Query streamed = CBLiteMango.query(db, String.format("{ \"sort\": %s, \"skip\": 1, \"limit\": 3, \"selector\": %s, \"fields\": %s }", sort, selector, fields).getBytes("UTF-8"));
+        assertEquals(expected.explain(), streamed.explain());
+
+        PreparedQuery prepared = CBLiteMango.prepare(db, String.format("{ \"selector\": %s, \"sort\": %s, \"limit\": 3, \"skip\": 1 }", selector, sort));
+        long found = 0;
+        for (Result row : prepared.execute(2, 10)) {
+            found++;
+        }
+        assertEquals(2, found);
+    }
+
+    @Test
+    public void bookmark() throws Exception {
+        JSONObject req = new JSONObject("{ \"selector\": { \"rank\": { \"$gt\": null } }, \"fields\": [ \"_id\", \"rank\" ], \"sort\": [ { \"rank\": \"desc\" } ], \"limit\": 5 }");
+
+        List<Long> ranks = new ArrayList<>();
+        int pages = 0;
+        while (true) {
+            FindResult page = CBLiteMango.findPage(db, req);
+            if (page.getDocs().isEmpty()) {
+                break;
+            }
+            for (Result row : page.getDocs()) {
+                ranks.add(row.getLong("rank"));
+            }
+            req.put("bookmark", page.getBookmark());
+            pages++;
+        }
+        assertEquals(3, pages);
+        assertEquals(Arrays.asList(12L, 11L, 10L, 9L, 8L, 7L, 6L, 5L, 4L, 3L, 2L, 1L), ranks);
+
+        try {
+            CBLiteMango.findPage(db, req.put("bookmark", "not a bookmark"));
+            fail("invalid bookmark should be rejected");
+        } catch (Exception e) {
+            // expected
+        }
+
+        // _rev pages by sequence, as it sorts
+        req = new JSONObject("{ \"selector\": { \"_id\": { \"$gt\": null } }, \"fields\": [ \"_id\" ], \"sort\": [ \"_rev\" ], \"limit\": 5 }");
+        List<String> ids = new ArrayList<>();
+        while (true) {
+            FindResult page = CBLiteMango.findPage(db, req);
+            if (page.getDocs().isEmpty()) {
+                break;
+            }
+            for (Result row : page.getDocs()) {
+                ids.add(row.getString("_id"));
+            }
+            req.put("bookmark", page.getBookmark());
+        }
+        assertEquals(db.getCount(), ids.size());
+        assertEquals(ids.size(), new HashSet<>(ids).size());
+    }
+
     private void addRecords() throws Exception {
 
         // { name: 'mario', _id: 'mario', rank: 5, series: 'mario', debut: 1981 },